@@ -0,0 +1,75 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import io.aexp.nodes.graphql.Argument;
+import io.aexp.nodes.graphql.Arguments;
+import io.aexp.nodes.graphql.GraphQLRequestEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Per-call cost of preparing a batch query of 100 CURs: rendering the query with the nodes builder,
+ * as SisuClient used to do, against looking up the pregenerated document and binding the ids variable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SisuGraphQLQueryBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    private List<String> ids;
+    private SisuGraphQLQueryRegistry queryRegistry;
+
+    @Setup
+    public void setUp() {
+        ids = IntStream.range(0, BATCH_SIZE).mapToObj(i -> "hy-CUR-" + i).collect(Collectors.toList());
+        queryRegistry = new SisuGraphQLQueryRegistry();
+    }
+
+    @Benchmark
+    public String nodesBuilder() throws Exception {
+        return GraphQLRequestEntity.Builder()
+            .url("http://localhost/graphql")
+            .request(SisuCourseUnitRealisation.SisuCURWrapper.class)
+            .arguments(new Arguments("course_unit_realisations", new Argument<>("ids", ids)))
+            .scalars(LocalDate.class, LocalDateTime.class)
+            .build()
+            .getRequest();
+    }
+
+    @Benchmark
+    public void registry(Blackhole blackhole) {
+        blackhole.consume(queryRegistry.getDocument(SisuCourseUnitRealisation.SisuCURWrapper.class));
+        blackhole.consume(queryRegistry.idsVariables(ids));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.batch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Compares the chunking of BatchProcessor against the previous recursive implementation, which
+ * filtered the whole item list against already processed items on every round.
+ * The legacy variant grows roughly cubically, so at 100k items a single run takes a long time.
+ * Use -p itemCount=10000 to leave it out of a quick run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class BatchProcessorBenchmark {
+
+    private static final int BATCH_SIZE = 300;
+
+    @Param({"10000", "100000"})
+    private int itemCount;
+
+    private List<Object> items;
+    private BatchProcessor<Object> batchProcessor;
+
+    @Setup
+    public void setUp() {
+        items = IntStream.range(0, itemCount).mapToObj(i -> new Object()).collect(Collectors.toList());
+        batchProcessor = new BatchProcessor<>();
+    }
+
+    @Benchmark
+    public List<Object> chunked() {
+        return batchProcessor.process(items, chunk -> chunk, BATCH_SIZE);
+    }
+
+    @Benchmark
+    public List<Object> legacyRecursive() {
+        return legacyProcess(items, newArrayList(), newArrayList());
+    }
+
+    private List<Object> legacyProcess(final List<Object> allItems,
+                                       final List<Object> results,
+                                       final List<Object> processedItems) {
+        List<Object> itemsToProcess = allItems
+            .stream()
+            .filter(item -> !processedItems.contains(item))
+            .limit(BATCH_SIZE)
+            .collect(Collectors.toList());
+
+        if (itemsToProcess.size() > 0) {
+            results.addAll(itemsToProcess);
+            processedItems.addAll(itemsToProcess);
+            return legacyProcess(allItems, results, processedItems);
+        }
+        return results;
+    }
+}
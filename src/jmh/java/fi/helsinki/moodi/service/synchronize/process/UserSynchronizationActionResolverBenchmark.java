@@ -0,0 +1,252 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize.process;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import fi.helsinki.moodi.integration.moodle.MoodleCourseData;
+import fi.helsinki.moodi.integration.moodle.MoodleRole;
+import fi.helsinki.moodi.integration.moodle.MoodleUser;
+import fi.helsinki.moodi.integration.moodle.MoodleUserEnrollments;
+import fi.helsinki.moodi.integration.studyregistry.StudyRegistryStudent;
+import fi.helsinki.moodi.integration.studyregistry.StudyRegistryTeacher;
+import fi.helsinki.moodi.service.util.MapperService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Resolves the actions of one course with 10k users, with the bitmask based resolver and with the previous
+ * resolver that built hash sets per user. The setup checks that both resolve the same actions for every user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserSynchronizationActionResolverBenchmark {
+
+    private static final long MOODLE_COURSE_ID = 1L;
+    private static final long STUDENT_ROLE = 5L;
+    private static final long TEACHER_ROLE = 3L;
+    private static final long MOODI_ROLE = 10L;
+    private static final long UNMANAGED_ROLE = 99L;
+
+    @Param({"10000"})
+    private int userCount;
+
+    private List<UserSynchronizationItem> items;
+    private UserSynchronizationActionResolver resolver;
+    private LegacyResolver legacyResolver;
+
+    @Setup
+    public void setUp() {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("roles", ImmutableMap.of(
+            "mapper.moodle.role.student", STUDENT_ROLE,
+            "mapper.moodle.role.teacher", TEACHER_ROLE,
+            "mapper.moodle.role.moodi", MOODI_ROLE)));
+        MapperService mapperService = new MapperService(environment, null);
+        resolver = new UserSynchronizationActionResolver(mapperService);
+        legacyResolver = new LegacyResolver(mapperService);
+
+        Random random = new Random(42);
+        items = IntStream.range(0, userCount).mapToObj(i -> createItem(i, random)).collect(Collectors.toList());
+
+        for (UserSynchronizationItem item : items) {
+            List<String> actions = describe(resolver.enrichWithActions(item).getActions());
+            List<String> legacyActions = describe(legacyResolver.enrichWithActions(item).getActions());
+            if (!actions.equals(legacyActions)) {
+                throw new IllegalStateException("Resolvers disagree for user " + item.getMoodleUserId() + ": " + actions + " != " + legacyActions);
+            }
+        }
+    }
+
+    @Benchmark
+    public void bitmask(Blackhole blackhole) {
+        for (UserSynchronizationItem item : items) {
+            blackhole.consume(resolver.enrichWithActions(item));
+        }
+    }
+
+    @Benchmark
+    public void legacyHashSets(Blackhole blackhole) {
+        for (UserSynchronizationItem item : items) {
+            blackhole.consume(legacyResolver.enrichWithActions(item));
+        }
+    }
+
+    private static UserSynchronizationItem createItem(int index, Random random) {
+        StudyRegistryStudent student = null;
+        if (random.nextInt(10) < 8) {
+            student = new StudyRegistryStudent();
+            student.isEnrolled = random.nextInt(10) < 8;
+        }
+        UserSynchronizationItem item = new UserSynchronizationItem(student);
+        if (student == null || random.nextInt(20) == 0) {
+            item.setTeacher(new StudyRegistryTeacher());
+        }
+
+        MoodleUser moodleUser = new MoodleUser();
+        moodleUser.id = (long) index;
+        item.withMoodleUser(moodleUser).withMoodleCourseId(MOODLE_COURSE_ID);
+
+        if (random.nextInt(10) < 9) {
+            MoodleUserEnrollments enrollments = new MoodleUserEnrollments();
+            enrollments.roles = newArrayList();
+            for (long role : new long[] {STUDENT_ROLE, TEACHER_ROLE, MOODI_ROLE, UNMANAGED_ROLE}) {
+                if (random.nextInt(role == UNMANAGED_ROLE ? 20 : 2) == 0) {
+                    enrollments.roles.add(new MoodleRole(role));
+                }
+            }
+            enrollments.enrolledCourses = random.nextBoolean()
+                ? newArrayList(new MoodleCourseData(MOODLE_COURSE_ID))
+                : Collections.emptyList();
+            item.withMoodleUserEnrollments(enrollments);
+        }
+        return item;
+    }
+
+    private static List<String> describe(List<UserSynchronizationAction> actions) {
+        return actions.stream()
+            .map(a -> a.getActionType() + ":" + a.getMoodleUserId() + ":" + a.getRoles().stream().sorted().collect(Collectors.toList()))
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * UserSynchronizationActionResolver as it was before role sets.
+     */
+    private static final class LegacyResolver {
+
+        private final MapperService mapperService;
+
+        private LegacyResolver(MapperService mapperService) {
+            this.mapperService = mapperService;
+        }
+
+        private Set<Long> getCurrentStudyRegistryRoles(UserSynchronizationItem item) {
+            Set<Long> currentRoles = Sets.newHashSet();
+            if (item.getStudent() != null && item.getStudent().isEnrolled) {
+                currentRoles.add(mapperService.getStudentRoleId());
+            }
+            if (item.getTeacher() != null) {
+                currentRoles.add(mapperService.getTeacherRoleId());
+            }
+            return currentRoles;
+        }
+
+        private Set<Long> addDefaultRoleIfNotEmpty(Set<Long> roles) {
+            if (!roles.isEmpty()) {
+                roles.add(mapperService.getMoodiRoleId());
+            }
+            return roles;
+        }
+
+        private boolean roleCanBeRemoved(Long role) {
+            return role == mapperService.getStudentRoleId();
+        }
+
+        private Set<Long> getCurrentMoodleRoles(UserSynchronizationItem item) {
+            if (item.getMoodleUserEnrollments() != null) {
+                return item.getMoodleUserEnrollments().roles.stream()
+                    .map(role -> role.roleId)
+                    .collect(Collectors.toSet());
+            }
+            return Collections.emptySet();
+        }
+
+        private void addRoleChangeAndSuspendActions(Long moodleUserId, Set<Long> currentRegistryRoles, Set<Long> currentRolesInMoodle,
+                                                    boolean userSeesCourseInMoodle, List<UserSynchronizationAction> actions) {
+            Set<Long> rolesToAdd = difference(currentRegistryRoles, currentRolesInMoodle);
+            Set<Long> rolesToRemove = currentRolesInMoodle.contains(mapperService.getMoodiRoleId()) ?
+                difference(currentRolesInMoodle, currentRegistryRoles).stream()
+                    .filter(this::roleCanBeRemoved)
+                    .collect(Collectors.toSet()) :
+                new HashSet<>();
+
+            if (!rolesToAdd.isEmpty()) {
+                addAction(moodleUserId, rolesToAdd, UserSynchronizationActionType.ADD_ROLES, actions);
+            }
+
+            boolean suspendStudent =
+                (rolesToRemove.contains(mapperService.getStudentRoleId()) ||
+                    (hasOnlySyncRole(currentRolesInMoodle) && !currentRegistryRoles.contains(mapperService.getStudentRoleId()))) &&
+                    !currentRolesInMoodle.contains(mapperService.getTeacherRoleId()) &&
+                    userSeesCourseInMoodle;
+
+            if (suspendStudent) {
+                addAction(moodleUserId, Sets.newHashSet(mapperService.getMoodiRoleId()),
+                    UserSynchronizationActionType.SUSPEND_ENROLLMENT, actions);
+            }
+
+            boolean reactivateStudent = rolesToAdd.contains(mapperService.getStudentRoleId()) && hasOnlySyncRole(currentRolesInMoodle);
+
+            if (reactivateStudent) {
+                addAction(moodleUserId, Sets.newHashSet(mapperService.getStudentRoleId()),
+                    UserSynchronizationActionType.REACTIVATE_ENROLLMENT, actions);
+            }
+
+            if (!rolesToRemove.isEmpty()) {
+                addAction(moodleUserId, rolesToRemove, UserSynchronizationActionType.REMOVE_ROLES, actions);
+            }
+        }
+
+        private boolean hasOnlySyncRole(Set<Long> roles) {
+            return roles.contains(mapperService.getMoodiRoleId()) && roles.size() == 1;
+        }
+
+        private Set<Long> difference(Set<Long> list1, Set<Long> list2) {
+            return list1.stream().filter(item -> !list2.contains(item)).collect(Collectors.toSet());
+        }
+
+        private void addAction(Long moodleUserId, Set<Long> roles, UserSynchronizationActionType type, List<UserSynchronizationAction> actions) {
+            actions.add(new UserSynchronizationAction(type, roles, moodleUserId));
+        }
+
+        private UserSynchronizationItem enrichWithActions(final UserSynchronizationItem item) {
+            Set<Long> currentStudyRegistryRolesWithDefaultRole = addDefaultRoleIfNotEmpty(getCurrentStudyRegistryRoles(item));
+            Long moodleUserId = item.getMoodleUserId();
+            List<UserSynchronizationAction> actions = newArrayList();
+            if (item.getMoodleUserEnrollments() != null) {
+                addRoleChangeAndSuspendActions(moodleUserId, currentStudyRegistryRolesWithDefaultRole, getCurrentMoodleRoles(item),
+                    item.userSeesCourseInMoodle(), actions);
+            } else if (!currentStudyRegistryRolesWithDefaultRole.isEmpty()) {
+                addAction(moodleUserId, currentStudyRegistryRolesWithDefaultRole, UserSynchronizationActionType.ADD_ENROLLMENT, actions);
+            }
+            return item.withActions(actions);
+        }
+    }
+}
@@ -19,17 +19,16 @@ package fi.helsinki.moodi.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Lists;
+import fi.helsinki.moodi.integration.http.PooledHttpClientFactory;
 import fi.helsinki.moodi.integration.http.RequestTimingInterceptor;
 import fi.helsinki.moodi.integration.moodle.MoodleClient;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
-import org.springframework.http.client.BufferingClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.FormHttpMessageConverter;
@@ -47,22 +46,21 @@ public class MoodleConfig {
     private Environment environment;
 
     @Bean
-    public MoodleClient moodleClient(ObjectMapper objectMapper, HttpClientBuilder clientBuilder) {
+    public MoodleClient moodleClient(ObjectMapper objectMapper, PooledHttpClientFactory httpClientFactory) {
         return new MoodleClient(
             restUrl(),
             wstoken(),
             objectMapper,
-            moodleRestTemplate(clientBuilder),
-            moodleReadOnlyRestTemplate(clientBuilder));
+            moodleRestTemplate(httpClientFactory),
+            moodleReadOnlyRestTemplate(httpClientFactory));
     }
 
-    private RestTemplate createRestTemplate(HttpRequestRetryHandler httpRequestRetryHandler, HttpClientBuilder clientBuilder) {
-        final HttpClient httpClient = clientBuilder
-            .setRetryHandler(httpRequestRetryHandler)
-            .build();
+    private RestTemplate createRestTemplate(String poolName, HttpRequestRetryHandler httpRequestRetryHandler,
+                                            PooledHttpClientFactory httpClientFactory) {
+        final HttpClient httpClient = httpClientFactory.create(poolName, httpRequestRetryHandler);
 
-        final ClientHttpRequestFactory requestFactory =
-            new BufferingClientHttpRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
+        // Not buffered: MoodleClient decodes responses straight from the stream.
+        final ClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
 
         final RestTemplate restTemplate = new RestTemplate(requestFactory);
         restTemplate.setInterceptors(Collections.singletonList(new RequestTimingInterceptor()));
@@ -77,14 +75,14 @@ public class MoodleConfig {
 
     //RestTemplate for requests that make modifications to Moodle. Do not get retried immediately in case of error.
     @Bean
-    public RestTemplate moodleRestTemplate(HttpClientBuilder clientBuilder) {
-        return createRestTemplate(new DefaultHttpRequestRetryHandler(RETRY_COUNT, false), clientBuilder);
+    public RestTemplate moodleRestTemplate(PooledHttpClientFactory httpClientFactory) {
+        return createRestTemplate("moodle", new DefaultHttpRequestRetryHandler(RETRY_COUNT, false), httpClientFactory);
     }
 
     //RestTemplate for request that only read data from Moodle. May get retried up to RETRY_COUNT times in case of failure.
     @Bean
-    public RestTemplate moodleReadOnlyRestTemplate(HttpClientBuilder clientBuilder) {
-        return createRestTemplate(new DefaultHttpRequestRetryHandler(RETRY_COUNT, true), clientBuilder);
+    public RestTemplate moodleReadOnlyRestTemplate(PooledHttpClientFactory httpClientFactory) {
+        return createRestTemplate("moodle-read-only", new DefaultHttpRequestRetryHandler(RETRY_COUNT, true), httpClientFactory);
     }
 
     private String restUrl() {
@@ -19,12 +19,15 @@ package fi.helsinki.moodi.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.helsinki.moodi.integration.http.LoggingInterceptor;
+import fi.helsinki.moodi.integration.http.PooledHttpClientFactory;
 import fi.helsinki.moodi.integration.http.RequestTimingInterceptor;
 import fi.helsinki.moodi.integration.sisu.SisuClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import fi.helsinki.moodi.integration.sisu.SisuGraphQLQueryRegistry;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
@@ -43,12 +46,6 @@ import static com.google.common.collect.Lists.newArrayList;
 
 @Configuration
 public class StudyRegistryConfig {
-    @Value("${httpClient.connectTimeout}")
-    private int connectTimeout;
-
-    @Value("${httpClient.socketTimeout}")
-    private int socketTimeout;
-
     @Autowired
     private Environment environment;
 
@@ -89,26 +86,47 @@ public class StudyRegistryConfig {
         }
     }
 
+    // Shared by the REST and GraphQL templates, so both use the same connection pool and client certificate.
     @Bean
-    public RestTemplate studyRegistryRestTemplate(ObjectMapper objectMapper, HttpClientBuilder clientBuilder) {
+    public HttpClient studyRegistryHttpClient(PooledHttpClientFactory httpClientFactory) {
+        final SSLContext sslContext = useClientCert() ? sslContext() : null;
+        return httpClientFactory.create("sisu", new DefaultHttpRequestRetryHandler(), sslContext);
+    }
+
+    @Bean
+    public RestTemplate studyRegistryRestTemplate(ObjectMapper objectMapper, HttpClient studyRegistryHttpClient) {
         final MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter(objectMapper);
 
         RestTemplate restTemplate = new RestTemplate(Collections.singletonList(converter));
         restTemplate.setInterceptors(newArrayList(new LoggingInterceptor(), new RequestTimingInterceptor()));
+        restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(studyRegistryHttpClient));
+        return restTemplate;
+    }
 
-        if (useClientCert()) {
-            clientBuilder.setSSLContext(sslContext());
-        }
-        restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(clientBuilder.build()));
+    // GraphQL queries are (de)serialized by SisuGraphQLExecutor, so no message converters are needed.
+    @Bean
+    public RestTemplate studyRegistryGraphQLRestTemplate(HttpClient studyRegistryHttpClient) {
+        RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(studyRegistryHttpClient));
+        restTemplate.setInterceptors(newArrayList(new LoggingInterceptor(), new RequestTimingInterceptor()));
         return restTemplate;
     }
 
+    // Generates and checks the GraphQL query documents at startup.
+    @Bean
+    public SisuGraphQLQueryRegistry sisuGraphQLQueryRegistry() {
+        return new SisuGraphQLQueryRegistry();
+    }
+
     @Bean
-    public SisuClient sisuClient(RestTemplate studyRegistryRestTemplate) {
+    public SisuClient sisuClient(RestTemplate studyRegistryRestTemplate,
+                                 RestTemplate studyRegistryGraphQLRestTemplate,
+                                 SisuGraphQLQueryRegistry sisuGraphQLQueryRegistry,
+                                 CacheManager cacheManager) {
         return new SisuClient(environment.getProperty("integration.sisu.baseUrl"),
                 environment.getProperty("integration.sisu.apiKey"),
-                connectTimeout,
-                socketTimeout,
-                studyRegistryRestTemplate);
+                studyRegistryRestTemplate,
+                studyRegistryGraphQLRestTemplate,
+                sisuGraphQLQueryRegistry,
+                cacheManager);
     }
 }
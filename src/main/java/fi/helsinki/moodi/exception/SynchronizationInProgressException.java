@@ -19,8 +19,14 @@ package fi.helsinki.moodi.exception;
 
 import fi.helsinki.moodi.service.synchronize.SynchronizationType;
 
+import java.util.List;
+
 public class SynchronizationInProgressException extends MoodiException {
     public SynchronizationInProgressException(SynchronizationType type) {
         super(String.format("Synchronization of type %s not started. Synchronization already in progress", type));
     }
+
+    public SynchronizationInProgressException(List<String> realisationIds) {
+        super(String.format("Synchronization of courses %s not started. Synchronization already in progress", realisationIds));
+    }
 }
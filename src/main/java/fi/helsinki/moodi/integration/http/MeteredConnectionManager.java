@@ -0,0 +1,94 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.http;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection pool that records how long requests wait for a connection and how long connections
+ * stay leased, in addition to the pool gauges (leased, available, pending and max connections).
+ * All meters are tagged with the name of the pool.
+ */
+public class MeteredConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private static final String NAME_TAG = "httpclient";
+
+    private final Timer waitTimer;
+    private final Timer leaseTimer;
+    private final Map<HttpClientConnection, Long> leaseStartTimes = new ConcurrentHashMap<>();
+
+    public MeteredConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry, String name, MeterRegistry meterRegistry) {
+        super(socketFactoryRegistry);
+        this.waitTimer = Timer.builder("httpcomponents.httpclient.pool.wait")
+            .description("Time spent waiting for a connection from the pool")
+            .tag(NAME_TAG, name)
+            .register(meterRegistry);
+        this.leaseTimer = Timer.builder("httpcomponents.httpclient.pool.lease")
+            .description("Time a connection was leased from the pool")
+            .tag(NAME_TAG, name)
+            .register(meterRegistry);
+        new PoolingHttpClientConnectionManagerMetricsBinder(this, name).bindTo(meterRegistry);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ConnectionRequest connectionRequest = super.requestConnection(route, state);
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                final long waitStarted = System.nanoTime();
+                try {
+                    final HttpClientConnection connection = connectionRequest.get(timeout, timeUnit);
+                    leaseStartTimes.put(connection, System.nanoTime());
+                    return connection;
+                } finally {
+                    waitTimer.record(System.nanoTime() - waitStarted, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return connectionRequest.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection connection, Object state, long keepAlive, TimeUnit timeUnit) {
+        final Long leaseStarted = leaseStartTimes.remove(connection);
+        if (leaseStarted != null) {
+            leaseTimer.record(System.nanoTime() - leaseStarted, TimeUnit.NANOSECONDS);
+        }
+        super.releaseConnection(connection, state, keepAlive, timeUnit);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.http;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLContext;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds HTTP clients backed by a pool of persistent connections, one pool per client.
+ *
+ * <p>Connections are reused, so idle connections may be closed by the server or a load balancer
+ * at any time. Reusing such a connection fails with NoHttpResponseException. To avoid that,
+ * connections are kept alive only as long as the server allows (and at most keepAliveMillis),
+ * idle connections are evicted in the background and a connection that has been inactive
+ * is validated before it is leased again.</p>
+ */
+@Component
+public class PooledHttpClientFactory {
+
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final int connectionRequestTimeout;
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final int validateAfterInactivityMillis;
+    private final long idleTimeoutMillis;
+    private final long keepAliveMillis;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public PooledHttpClientFactory(@Value("${httpClient.connectTimeout}") int connectTimeout,
+                                   @Value("${httpClient.socketTimeout}") int socketTimeout,
+                                   @Value("${httpClient.pool.connectionRequestTimeout:30000}") int connectionRequestTimeout,
+                                   @Value("${httpClient.pool.maxTotal:40}") int maxTotal,
+                                   @Value("${httpClient.pool.maxPerRoute:20}") int maxPerRoute,
+                                   @Value("${httpClient.pool.validateAfterInactivityMillis:1000}") int validateAfterInactivityMillis,
+                                   @Value("${httpClient.pool.idleTimeoutMillis:30000}") long idleTimeoutMillis,
+                                   @Value("${httpClient.pool.keepAliveMillis:4000}") long keepAliveMillis,
+                                   MeterRegistry meterRegistry) {
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.connectionRequestTimeout = connectionRequestTimeout;
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.keepAliveMillis = keepAliveMillis;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Creates a pooled client. The name tags the pool metrics.
+     */
+    public HttpClient create(String name, HttpRequestRetryHandler retryHandler) {
+        return create(name, retryHandler, null);
+    }
+
+    /**
+     * Creates a pooled client that uses the given SSL context (e.g. with a client certificate) for HTTPS connections.
+     */
+    public HttpClient create(String name, HttpRequestRetryHandler retryHandler, SSLContext sslContext) {
+        final RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .setConnectionRequestTimeout(connectionRequestTimeout)
+            .build();
+
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager(name, sslContext))
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(this::getKeepAliveDuration)
+            .setRetryHandler(retryHandler)
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    private MeteredConnectionManager connectionManager(String name, SSLContext sslContext) {
+        final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", sslContext != null
+                ? new SSLConnectionSocketFactory(sslContext)
+                : SSLConnectionSocketFactory.getSocketFactory())
+            .build();
+
+        final MeteredConnectionManager connectionManager = new MeteredConnectionManager(socketFactoryRegistry, name, meterRegistry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityMillis);
+        // Socket timeout until the HTTPS connection has been established:
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+            .setSoTimeout(socketTimeout)
+            .build());
+        return connectionManager;
+    }
+
+    // Honor the Keep-Alive timeout sent by the server, but never keep a connection longer than keepAliveMillis.
+    private long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+    }
+}
@@ -17,31 +17,44 @@
 
 package fi.helsinki.moodi.integration.moodle;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import fi.helsinki.moodi.service.batch.ConcurrentTasks;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.Cacheable;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.FormHttpMessageConverter;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
 public class MoodleClient {
 
+    public static final String USER_BY_USERNAME_CACHE = "moodle-client.moodle-user-by-username";
+
     private static final Logger logger = getLogger(MoodleClient.class);
+    private static final ThreadFactory BATCH_THREAD_FACTORY = ConcurrentTasks.threadFactory("moodle-client-%d");
 
     private final String restUrl;
     private final RestTemplate restTemplate;
@@ -50,6 +63,10 @@ public class MoodleClient {
     private final String wstoken;
     @Value("${MoodleClient.batchsize:100}")
     private int batchSize;
+    @Value("${MoodleClient.concurrency:1}")
+    private int concurrency;
+    @Value("${MoodleClient.userBatchsize:100}")
+    private int userBatchSize;
 
     private static final String ENROLMENTS = "enrolments";
     private static final String COURSEID = "courseid";
@@ -58,6 +75,8 @@ public class MoodleClient {
     private static final String SUSPEND = "suspend";
     private static final String COURSES = "courses";
     private static final String USERS = "users";
+    private static final int RESPONSE_PREVIEW_BYTES = 300;
+    private static final FormHttpMessageConverter FORM_CONVERTER = new FormHttpMessageConverter();
 
     public MoodleClient(String restUrl,
                         String wstoken,
@@ -186,7 +205,7 @@ public class MoodleClient {
         }
     }
 
-    @Cacheable(value = "moodle-client.moodle-user-by-username", unless = "#result == null")
+    @Cacheable(value = USER_BY_USERNAME_CACHE, unless = "#result == null")
     public MoodleUser getUser(final List<String> username) {
         final MultiValueMap<String, String> params = createParametersForFunction("core_user_get_users_by_field");
         params.set("field", "username");
@@ -202,6 +221,47 @@ public class MoodleClient {
         }
     }
 
+    /**
+     * Looks up many users with up to MoodleClient.userBatchsize usernames per request.
+     * Returns the found users keyed by the requested username. Not cached here, see MoodleService.
+     */
+    public Map<String, MoodleUser> getUsersByUsername(final List<String> usernames) {
+        final Map<String, MoodleUser> ret = new HashMap<>();
+        for (List<String> batch : Lists.partition(usernames, userBatchSize)) {
+            final MultiValueMap<String, String> params = createParametersForFunction("core_user_get_users_by_field");
+            params.set("field", "username");
+            setListParameters(params, "values[%s]", batch, String::valueOf);
+
+            try {
+                final List<MoodleUser> users = execute(params, new TypeReference<List<MoodleUser>>() {}, true);
+                if (users != null) {
+                    ret.putAll(matchUsersToUsernames(batch, users));
+                }
+            } catch (Exception e) {
+                return handleException("Error executing method: getUsersByUsername", e);
+            }
+        }
+        return ret;
+    }
+
+    private Map<String, MoodleUser> matchUsersToUsernames(final List<String> requestedUsernames, final List<MoodleUser> users) {
+        if (requestedUsernames.size() == 1) {
+            return users.isEmpty() ? Collections.emptyMap() : Collections.singletonMap(requestedUsernames.get(0), users.get(0));
+        }
+        // Moodle stores usernames in lower case.
+        final Map<String, MoodleUser> usersByLowerCaseUsername = users.stream()
+            .filter(user -> user.username != null)
+            .collect(Collectors.toMap(user -> user.username.toLowerCase(), Function.identity(), (a, b) -> a));
+        final Map<String, MoodleUser> ret = new HashMap<>();
+        for (String username : requestedUsernames) {
+            final MoodleUser user = usersByLowerCaseUsername.get(username.toLowerCase());
+            if (user != null) {
+                ret.put(username, user);
+            }
+        }
+        return ret;
+    }
+
     // For testing purposes
     public long createUser(final String username, final String firstName, final String lastName,
                            final String email, final String password, final String idNumber) {
@@ -247,55 +307,84 @@ public class MoodleClient {
     }
 
     public void getEnrolledUsersForCourses(final Map<Long, List<MoodleUserEnrollments>> enrolmentsByCourseId, final List<Long> courseIds) {
-        int batchCounter = 1;
         List<List<Long>> batches = splitToBatches(courseIds);
-        for (List<Long> batchCourseIds : batches) {
-            List<MoodleCourseWithEnrollments> result = null;
-            MultiValueMap<String, String> params = createEnrolmentQueryParams(batchCourseIds);
-            try {
-                result = execute(params, new TypeReference<List<MoodleCourseWithEnrollments>>() {
-                }, true);
-                if (result != null && result.size() != batchCourseIds.size()) {
-                    throw new MoodleClientException("Received response with less courses (" + result.size() +
-                        ") than sent batchCourseIds: " + batchCourseIds.size(), "", "500");
-                }
-            } catch (Exception e) {
-                result = null;
-                logger.info("Error executing method: getEnrolledUsersForCourses (batch " + batchCounter + "/" + batches.size() + ")", e);
-                logger.info("attempt calling course enrollments one course at time");
-                int errorsInBatch = 0;
-                for (Long courseId : batchCourseIds) {
-                    params = createEnrolmentQueryParams(Collections.singletonList(courseId));
-                    List<MoodleCourseWithEnrollments> singleResult = null;
-                    try {
-                        singleResult = execute(params, new TypeReference<List<MoodleCourseWithEnrollments>>() {
-                        }, true);
-                        if (singleResult != null && singleResult.size() != 1) {
-                            throw new MoodleClientException("Received response with no courses for courseId " + courseId, "", "500");
-                        }
-                    } catch (Exception ee) {
-                        errorsInBatch++;
-                        logger.info("received error when attempting to get enrolments for course id " + courseId, ee);
-                    }
-                    if (singleResult != null && singleResult.size() == 1) {
-                        List<MoodleUserEnrollments> enrollments = singleResult.get(0).users;
-                        enrolmentsByCourseId.put(courseId, enrollments);
+        if (concurrency > 1 && batches.size() > 1) {
+            getEnrolledUsersForBatchesConcurrently(enrolmentsByCourseId, batches);
+        } else {
+            for (int i = 0; i < batches.size(); i++) {
+                enrolmentsByCourseId.putAll(getEnrolledUsersForBatch(batches.get(i), i + 1, batches.size()));
+            }
+        }
+    }
+
+    /**
+     * Keeps up to MoodleClient.concurrency batch requests in flight. Each batch collects its results into a map of its own,
+     * and the maps are merged into enrolmentsByCourseId by the calling thread in batch order.
+     */
+    private void getEnrolledUsersForBatchesConcurrently(final Map<Long, List<MoodleUserEnrollments>> enrolmentsByCourseId,
+                                                        final List<List<Long>> batches) {
+        final List<Callable<Map<Long, List<MoodleUserEnrollments>>>> tasks = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+            final List<Long> batchCourseIds = batches.get(i);
+            final int batchCounter = i + 1;
+            tasks.add(() -> getEnrolledUsersForBatch(batchCourseIds, batchCounter, batches.size()));
+        }
+        try {
+            ConcurrentTasks.invokeInOrder(tasks, concurrency, BATCH_THREAD_FACTORY).forEach(enrolmentsByCourseId::putAll);
+        } catch (Exception e) {
+            handleException("Error executing method: getEnrolledUsersForCourses", e);
+        }
+    }
+
+    private Map<Long, List<MoodleUserEnrollments>> getEnrolledUsersForBatch(final List<Long> batchCourseIds,
+                                                                            final int batchCounter,
+                                                                            final int batchCount) {
+        final Map<Long, List<MoodleUserEnrollments>> enrolmentsByCourseId = new LinkedHashMap<>();
+        List<MoodleCourseWithEnrollments> result = null;
+        MultiValueMap<String, String> params = createEnrolmentQueryParams(batchCourseIds);
+        try {
+            result = execute(params, new TypeReference<List<MoodleCourseWithEnrollments>>() {
+            }, true);
+            if (result != null && result.size() != batchCourseIds.size()) {
+                throw new MoodleClientException("Received response with less courses (" + result.size() +
+                    ") than sent batchCourseIds: " + batchCourseIds.size(), "", "500");
+            }
+        } catch (Exception e) {
+            result = null;
+            logger.info("Error executing method: getEnrolledUsersForCourses (batch " + batchCounter + "/" + batchCount + ")", e);
+            logger.info("attempt calling course enrollments one course at time");
+            int errorsInBatch = 0;
+            for (Long courseId : batchCourseIds) {
+                params = createEnrolmentQueryParams(Collections.singletonList(courseId));
+                List<MoodleCourseWithEnrollments> singleResult = null;
+                try {
+                    singleResult = execute(params, new TypeReference<List<MoodleCourseWithEnrollments>>() {
+                    }, true);
+                    if (singleResult != null && singleResult.size() != 1) {
+                        throw new MoodleClientException("Received response with no courses for courseId " + courseId, "", "500");
                     }
+                } catch (Exception ee) {
+                    errorsInBatch++;
+                    logger.info("received error when attempting to get enrolments for course id " + courseId, ee);
                 }
-                if (errorsInBatch > 50) {
-                    handleException("Too many errors in one batch, abort: " + errorsInBatch + " (batch " + batchCounter +
-                        "/" + batches.size() + ")", e);
-                }
-            }
-            if (result != null) { // result.size() == batchCourseIds.size() always at this point
-                for (int i = 0; i < batchCourseIds.size(); i++) {
-                    long courseId = batchCourseIds.get(i);
-                    List<MoodleUserEnrollments> enrollments = result.get(i).users;
+                if (singleResult != null && singleResult.size() == 1) {
+                    List<MoodleUserEnrollments> enrollments = singleResult.get(0).users;
                     enrolmentsByCourseId.put(courseId, enrollments);
                 }
             }
-            batchCounter++;
+            if (errorsInBatch > 50) {
+                handleException("Too many errors in one batch, abort: " + errorsInBatch + " (batch " + batchCounter +
+                    "/" + batchCount + ")", e);
+            }
+        }
+        if (result != null) { // result.size() == batchCourseIds.size() always at this point
+            for (int i = 0; i < batchCourseIds.size(); i++) {
+                long courseId = batchCourseIds.get(i);
+                List<MoodleUserEnrollments> enrollments = result.get(i).users;
+                enrolmentsByCourseId.put(courseId, enrollments);
+            }
         }
+        return enrolmentsByCourseId;
     }
 
     public long updateCourseVisibility(final long courseId, final boolean visible) {
@@ -375,12 +464,6 @@ public class MoodleClient {
         return String.format("%s[%d][%s]", param1, i, param2);
     }
 
-    private HttpHeaders createHeaders() {
-        final HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
-        return headers;
-    }
-
     private RestTemplate getRestTemplate(final boolean readOnly) {
         return readOnly ? readOnlyRestTemplate : restTemplate;
     }
@@ -388,36 +471,63 @@ public class MoodleClient {
     private <T> T execute(
             final MultiValueMap<String, String> params,
             final TypeReference<T> typeReference,
-            final boolean readOnly)
-            throws IOException {
+            final boolean readOnly) {
 
         logger.info("Invoke url: {} with params: {}", restUrl, paramsToString(params));
 
-        final String body = getRestTemplate(readOnly)
-            .postForObject(restUrl, new HttpEntity<>(params, createHeaders()), String.class);
+        // Decoding errors surface as ResourceAccessException, Moodle exceptions as MoodleClientException.
+        return getRestTemplate(readOnly).execute(
+            restUrl,
+            HttpMethod.POST,
+            request -> {
+                request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                FORM_CONVERTER.write(params, MediaType.APPLICATION_FORM_URLENCODED, request);
+            },
+            response -> readResponse(response.getBody(), typeReference));
+    }
 
-        if (body != null && !body.isEmpty()) {
-            logger.info("Response body: {}", body.length() > 300 ? body.substring(0, 300) + "..." : body);
-            final JsonNode jsonNode = objectMapper.readTree(body);
+    /**
+     * Decodes the response in a single pass straight from the stream. Enrolment responses can be tens of megabytes,
+     * so the body is never held as a String. Moodle returns 200 OK even if there is an exception, so a response that
+     * is a JSON object is checked for the exception envelope before mapping. Object responses are small.
+     */
+    private <T> T readResponse(final InputStream body, final TypeReference<T> typeReference) throws IOException {
+        final InputStream in = new BufferedInputStream(body);
+        logResponsePreview(in);
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            final JsonToken firstToken = parser.nextToken();
+            if (firstToken == null) {
+                logger.info("Response body is empty");
+            } else if (firstToken == JsonToken.START_OBJECT) {
+                final JsonNode jsonNode = objectMapper.readTree(parser);
+                if (jsonNode.has("exception")) {
+                    String exception = jsonNode.get("exception").asText();
+                    String message = Optional.ofNullable(jsonNode.get("message")).map(JsonNode::asText).orElse("");
+                    String errorCode = Optional.ofNullable(jsonNode.get("errorcode")).map(JsonNode::asText).orElse("");
+                    throw new MoodleClientException(message, exception, errorCode);
+                }
+                return typeReference != null ? objectMapper.readerFor(typeReference).readValue(jsonNode) : null;
+            }
 
-            // Checking if there is a Moodle exception in the response body. Moodle returns 200 OK even if there is an
-            // exception.
-            if (jsonNode.has("exception")) {
-                String exception = jsonNode.get("exception").asText();
-                String message = Optional.of(jsonNode.get("message")).map(JsonNode::asText).orElse("");
-                String errorCode = Optional.of(jsonNode.get("errorcode")).map(JsonNode::asText).orElse("");
-                throw new MoodleClientException(message, exception, errorCode);
+            // No mapping requested, return null
+            if (typeReference == null) {
+                return null;
             }
-        } else {
-            logger.info("Response body is empty");
-        }
 
-        // No mapping requested, return null
-        if (typeReference == null) {
-            return null;
+            return objectMapper.readValue(parser, typeReference);
         }
+    }
 
-        return objectMapper.readValue(body, typeReference);
+    private void logResponsePreview(final InputStream in) throws IOException {
+        in.mark(RESPONSE_PREVIEW_BYTES + 1);
+        final byte[] preview = in.readNBytes(RESPONSE_PREVIEW_BYTES + 1);
+        in.reset();
+        if (preview.length > 0) {
+            logger.info("Response body: {}", preview.length > RESPONSE_PREVIEW_BYTES
+                ? new String(preview, 0, RESPONSE_PREVIEW_BYTES, StandardCharsets.UTF_8) + "..."
+                : new String(preview, StandardCharsets.UTF_8));
+        }
     }
 
     private static String paramsToString(final MultiValueMap<String, String> params) {
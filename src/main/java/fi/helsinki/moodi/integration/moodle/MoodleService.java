@@ -17,11 +17,17 @@
 
 package fi.helsinki.moodi.integration.moodle;
 
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.stereotype.Service;
 
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -30,10 +36,14 @@ import java.util.Optional;
 public class MoodleService {
 
     private final MoodleClient moodleClient;
+    private final CacheManager cacheManager;
+    private final MoodleUserNotFoundCache userNotFoundCache;
 
     @Autowired
-    public MoodleService(MoodleClient moodleClient) {
+    public MoodleService(MoodleClient moodleClient, CacheManager cacheManager, MoodleUserNotFoundCache userNotFoundCache) {
         this.moodleClient = moodleClient;
+        this.cacheManager = cacheManager;
+        this.userNotFoundCache = userNotFoundCache;
     }
 
     public long createCourse(final MoodleCourse course) {
@@ -42,12 +52,64 @@ public class MoodleService {
 
     public Optional<MoodleUser> getUser(final List<String> username) {
         if (username != null && !username.isEmpty()) {
-            return Optional.ofNullable(moodleClient.getUser(username));
+            if (username.stream().allMatch(userNotFoundCache::isNotFound)) {
+                return Optional.empty();
+            }
+            final Optional<MoodleUser> user = Optional.ofNullable(moodleClient.getUser(username));
+            if (user.isPresent()) {
+                username.forEach(userNotFoundCache::markFound);
+            } else {
+                username.forEach(userNotFoundCache::markNotFound);
+            }
+            return user;
         } else {
             return Optional.empty();
         }
     }
 
+    /**
+     * Resolves many usernames with as few Moodle calls as possible. Shares the cache of getUser,
+     * so users found here are not fetched again one by one, and vice versa.
+     * Usernames not found from Moodle are left out of the returned map, and are not asked again until
+     * their entry in MoodleUserNotFoundCache expires.
+     */
+    public Map<String, MoodleUser> getUsersByUsername(final Collection<String> usernames) {
+        final Cache cache = cacheManager.getCache(MoodleClient.USER_BY_USERNAME_CACHE);
+        final Map<String, MoodleUser> ret = new HashMap<>();
+        final List<String> uncachedUsernames = new ArrayList<>();
+
+        usernames.stream().filter(StringUtils::isNotEmpty).distinct().forEach(username -> {
+            final MoodleUser cached = cache != null ? cache.get(userCacheKey(username), MoodleUser.class) : null;
+            if (cached != null) {
+                ret.put(username, cached);
+            } else if (!userNotFoundCache.isNotFound(username)) {
+                uncachedUsernames.add(username);
+            }
+        });
+
+        if (!uncachedUsernames.isEmpty()) {
+            final Map<String, MoodleUser> fetched = moodleClient.getUsersByUsername(uncachedUsernames);
+            for (String username : uncachedUsernames) {
+                final MoodleUser user = fetched.get(username);
+                if (user != null) {
+                    ret.put(username, user);
+                    userNotFoundCache.markFound(username);
+                    if (cache != null) {
+                        cache.put(userCacheKey(username), user);
+                    }
+                } else {
+                    userNotFoundCache.markNotFound(username);
+                }
+            }
+        }
+        return ret;
+    }
+
+    // Same key that @Cacheable generates for getUser with a single username.
+    private static List<String> userCacheKey(final String username) {
+        return Collections.singletonList(username);
+    }
+
     public long createUser(final String username, final String firstName, final String lastName,
                            final String email, final String password, final String idNumber) {
         return moodleClient.createUser(username, firstName, lastName, email, password, idNumber);
@@ -26,6 +26,9 @@ public final class MoodleUser {
     @JsonProperty("id")
     public Long id;
 
+    @JsonProperty("username")
+    public String username;
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this, ToStringStyle.MULTI_LINE_STYLE);
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.moodle;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers usernames that were not found from Moodle, so that users without a Moodle account are not looked up
+ * again for every course they are in. Entries expire after a short TTL set in ehcache.xml, and are removed as soon
+ * as a lookup finds the user. Hits and misses are published as the moodle.user.not.found.cache.gets metric.
+ */
+@Component
+public class MoodleUserNotFoundCache {
+
+    public static final String CACHE_NAME = "moodle-client.moodle-user-not-found";
+
+    private static final String GETS_METRIC = "moodle.user.not.found.cache.gets";
+
+    private final CacheManager cacheManager;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public MoodleUserNotFoundCache(CacheManager cacheManager, MeterRegistry meterRegistry) {
+        this.cacheManager = cacheManager;
+        FunctionCounter.builder(GETS_METRIC, hits, AtomicLong::get)
+            .description("Lookups of usernames not found from Moodle")
+            .tag("result", "hit")
+            .register(meterRegistry);
+        FunctionCounter.builder(GETS_METRIC, misses, AtomicLong::get)
+            .description("Lookups of usernames not found from Moodle")
+            .tag("result", "miss")
+            .register(meterRegistry);
+    }
+
+    public boolean isNotFound(final String username) {
+        final Cache cache = cacheManager.getCache(CACHE_NAME);
+        if (cache != null && cache.get(username) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    public void markNotFound(final String username) {
+        final Cache cache = cacheManager.getCache(CACHE_NAME);
+        if (cache != null) {
+            cache.put(username, Boolean.TRUE);
+        }
+    }
+
+    public void markFound(final String username) {
+        final Cache cache = cacheManager.getCache(CACHE_NAME);
+        if (cache != null) {
+            cache.evict(username);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Course unit realisation IDs touched in a Sisu export since some ordinal, and the ordinal to continue from next time.
+ */
+public class SisuChangeExport {
+    public final Set<String> courseUnitRealisationIds;
+    public final long greatestOrdinal;
+
+    public SisuChangeExport(Set<String> courseUnitRealisationIds, long greatestOrdinal) {
+        this.courseUnitRealisationIds = courseUnitRealisationIds;
+        this.greatestOrdinal = greatestOrdinal;
+    }
+
+    public static class SisuChangeExportBatch {
+        public long greatestOrdinal;
+        public boolean hasMore;
+        public List<SisuChangedEntity> entities = new ArrayList<>();
+    }
+
+    /**
+     * Only the fields needed to map an exported entity to a course unit realisation.
+     * CUR exports carry the realisation ID in id, enrolment exports in courseUnitRealisationId.
+     */
+    public static class SisuChangedEntity {
+        public String id;
+        public String courseUnitRealisationId;
+    }
+}
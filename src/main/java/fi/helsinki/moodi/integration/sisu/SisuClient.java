@@ -18,13 +18,14 @@
 package fi.helsinki.moodi.integration.sisu;
 
 import fi.helsinki.moodi.exception.IntegrationConnectionException;
-import io.aexp.nodes.graphql.*;
-import io.aexp.nodes.graphql.exceptions.GraphQLException;
+import fi.helsinki.moodi.service.batch.ConcurrentTasks;
 import io.aexp.nodes.graphql.internal.Error;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.interceptor.SimpleKey;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -33,64 +34,96 @@ import org.springframework.util.StopWatch;
 import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestOperations;
 
-import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static fi.helsinki.moodi.Constants.ACTIVE;
 
 public class SisuClient {
 
     private static final Logger log = LoggerFactory.getLogger(SisuClient.class);
+    private static final ThreadFactory BATCH_THREAD_FACTORY = ConcurrentTasks.threadFactory("sisu-client-%d");
 
     private static final String API_KEY_HEADER_NAME = "X-Api-Key";
+    private static final String CUR_EXPORT_PATH = "/kori/api/course-unit-realisations/v1/export";
+    private static final String ENROLMENT_EXPORT_PATH = "/ilmo/api/enrolments/v1/export";
+    private static final String ORGANISATION_EXPORT_PATH = "/kori/api/organisations/v2/export";
+    public static final String ORGANISATIONS_BY_ID_CACHE = "sisu-client.organisations-by-id";
+    public static final String ORGANISATION_SNAPSHOTS_CACHE = "sisu-client.organisation-snapshots";
+    private static final int EXPORT_LIMIT = 10000;
     private final String sisuBaseUrl;
     private final String apiKey;
     @Value("${SisuGraphQLClient.batchsize:100}")
     private int batchSize;
-    private int connectTimeout;
-    private int socketTimeout;
+    @Value("${SisuGraphQLClient.concurrency:1}")
+    private int concurrency;
     private final RestOperations restOperations;
+    private final SisuGraphQLExecutor graphQLExecutor;
+    private final SisuGraphQLQueryRegistry queryRegistry;
+    private final CacheManager cacheManager;
 
-    public SisuClient(String sisuBaseUrl, String apiKey, int connectTimeout, int socketTimeout, RestOperations restOperations) {
+    public SisuClient(String sisuBaseUrl,
+                      String apiKey,
+                      RestOperations restOperations,
+                      RestOperations graphQLRestOperations,
+                      SisuGraphQLQueryRegistry queryRegistry,
+                      CacheManager cacheManager) {
         this.sisuBaseUrl = sisuBaseUrl;
         this.apiKey = apiKey;
-        this.connectTimeout = connectTimeout;
-        this.socketTimeout = socketTimeout;
         this.restOperations = restOperations;
+        this.graphQLExecutor = new SisuGraphQLExecutor(sisuBaseUrl + "/graphql", apiKey, graphQLRestOperations);
+        this.queryRegistry = queryRegistry;
+        this.cacheManager = cacheManager;
     }
 
     // If even one of the requested IDs is not found, the whole query will return empty.
     // Should not happen, as Sisu courses should not refer to non-existing persons.
     public List<SisuPerson> getPersons(List<String> ids) {
-        List<SisuPerson> ret = new ArrayList<>();
-        for (List batchIds : splitToBatches(ids)) {
-            Arguments idArgument = new Arguments("private_persons", new Argument<>("ids", batchIds));
-            SisuPerson.SisuPersonWrapper result = queryWithArguments(SisuPerson.SisuPersonWrapper.class, idArgument);
-            if (result != null) {
-                ret.addAll(result.private_persons);
-            }
-        }
-        return ret;
+        return queryInBatches(ids, batchIds -> {
+            SisuPerson.SisuPersonWrapper result = queryByIds(SisuPerson.SisuPersonWrapper.class, batchIds);
+            return result != null ? result.private_persons : Collections.emptyList();
+        });
     }
 
     // If even one of the requested IDs is not found, the whole query will return empty.
     // Should not happen, since courses being synced existed during import.
     // But adding a broken ID into the DB manually would cause all IDs in the batch to go missing.
     public List<SisuCourseUnitRealisation> getCourseUnitRealisations(final List<String> ids) {
-        List<SisuCourseUnitRealisation> ret = new ArrayList<>();
-        for (List batchIds : splitToBatches(ids)) {
-            Arguments idArgument = new Arguments("course_unit_realisations", new Argument<>("ids", batchIds));
-            SisuCourseUnitRealisation.SisuCURWrapper result = queryWithArguments(SisuCourseUnitRealisation.SisuCURWrapper.class, idArgument);
-            if (result != null) {
-                ret.addAll(result.course_unit_realisations);
-            }
+        return queryInBatches(ids, batchIds -> {
+            SisuCourseUnitRealisation.SisuCURWrapper result = queryByIds(SisuCourseUnitRealisation.SisuCURWrapper.class, batchIds);
+            return result != null ? result.course_unit_realisations : Collections.emptyList();
+        });
+    }
+
+    private <T> List<T> queryInBatches(final List<String> ids, final Function<List<String>, List<T>> batchQuery) {
+        List<List<String>> batches = splitToBatches(ids);
+        if (concurrency > 1 && batches.size() > 1) {
+            return queryInBatchesConcurrently(batches, batchQuery);
+        }
+        List<T> ret = new ArrayList<>();
+        for (List<String> batchIds : batches) {
+            ret.addAll(batchQuery.apply(batchIds));
         }
         return ret;
     }
 
+    /**
+     * Runs up to SisuGraphQLClient.concurrency batch queries at a time. Results are combined in batch order,
+     * so the outcome does not depend on which batch finishes first. If any batches fail, the error of the first
+     * failed batch is thrown as is, with the errors of the other failed batches suppressed in it.
+     */
+    private <T> List<T> queryInBatchesConcurrently(final List<List<String>> batches, final Function<List<String>, List<T>> batchQuery) {
+        List<Callable<List<T>>> tasks = batches.stream()
+            .map(batchIds -> (Callable<List<T>>) () -> batchQuery.apply(batchIds))
+            .collect(Collectors.toList());
+        return ConcurrentTasks.invokeInOrder(tasks, concurrency, BATCH_THREAD_FACTORY).stream()
+            .flatMap(List::stream)
+            .collect(Collectors.toList());
+    }
+
     public Optional<SisuCourseUnitRealisation> getCourseUnitRealisation(final String id) {
         if (id == null) {
             return Optional.empty();
@@ -98,30 +131,97 @@ public class SisuClient {
         return this.getCourseUnitRealisations(Collections.singletonList(id)).stream().findFirst();
     }
 
-    @Cacheable(value = "sisu-client.organisations-by-id", unless = "#result == null or #result.size()==0")
-    public Map<String, SisuOrganisation> getAllOrganisationsById() {
-        Map<String, SisuOrganisation> ret = new HashMap<>();
-        List<SisuOrganisation> snapshots = new ArrayList<>();
-        int since = 0;
+    /**
+     * Latest active snapshot of each organisation. Only the changes exported since the previous call are fetched
+     * and folded into the snapshots kept in ORGANISATION_SNAPSHOTS_CACHE. If those snapshots have been evicted,
+     * or a kept snapshot has been deactivated, the whole export is read again. Use SisuOrganisationCache for lookups.
+     */
+    public synchronized Map<String, SisuOrganisation> getAllOrganisationsById() {
+        final Cache snapshotCache = cacheManager.getCache(ORGANISATION_SNAPSHOTS_CACHE);
+        SisuOrganisationSnapshots snapshots = snapshotCache.get(SimpleKey.EMPTY, SisuOrganisationSnapshots.class);
+        if (snapshots == null) {
+            snapshots = new SisuOrganisationSnapshots();
+        }
+
+        foldOrganisationExport(snapshots);
+        if (snapshots.isIncomplete()) {
+            log.info("A kept organisation snapshot has been deactivated, reading the organisation export again");
+            snapshots = snapshots.forReread();
+            foldOrganisationExport(snapshots);
+        }
+        snapshotCache.put(SimpleKey.EMPTY, snapshots);
+
+        return snapshots.getLatestById();
+    }
+
+    private void foldOrganisationExport(final SisuOrganisationSnapshots snapshots) {
+        final long since = snapshots.getGreatestOrdinal();
+        long ordinal = since;
+        int count = 0;
         while (true) {
             SisuOrganisation.SisuOrganisationExportBatch batch =
-                    getRestData(sisuBaseUrl + "/kori/api/organisations/v2/export?limit=10000&since=" + since,
+                    getRestData(sisuBaseUrl + ORGANISATION_EXPORT_PATH + "?limit=" + EXPORT_LIMIT + "&since=" + ordinal,
                     new ParameterizedTypeReference<SisuOrganisation.SisuOrganisationExportBatch>() {});
-            snapshots.addAll(batch.entities);
-            if (!batch.hasMore) {
+            // Fold each page as it arrives, so that only one page of snapshots is held at a time.
+            batch.entities.forEach(snapshots::fold);
+            count += batch.entities.size();
+            if (!batch.hasMore || batch.greatestOrdinal <= ordinal) {
+                ordinal = Math.max(ordinal, batch.greatestOrdinal);
                 break;
             }
-            since = batch.greatestOrdinal;
+            ordinal = batch.greatestOrdinal;
         }
-        Map<String, List<SisuOrganisation>> activeSnapshotsByOrgId = snapshots.stream()
-                .filter(o -> ACTIVE.equals(o.documentState) && ACTIVE.equals(o.status))
-                .collect(Collectors.groupingBy(SisuOrganisation::getId));
+        snapshots.completeFold(ordinal);
+        log.info("Folded {} organisation snapshots exported since {}, continuing next time from {}", count, since, ordinal);
+    }
 
-        // Take the latest snapshot for each organisation unit.
-        activeSnapshotsByOrgId.entrySet().stream()
-                .forEach(e -> ret.put(e.getKey(), e.getValue().stream().max(Comparator.comparing(sh -> sh.snapshotDateTime)).get()));
+    /**
+     * Pages through the CUR export starting after the given ordinal.
+     */
+    public SisuChangeExport exportChangedCourseUnitRealisationIds(final long since) {
+        return exportChangedIds(CUR_EXPORT_PATH, since, entity -> entity.id);
+    }
 
-        return ret;
+    /**
+     * Pages through the enrolment export starting after the given ordinal, returning the CURs the enrolments belong to.
+     */
+    public SisuChangeExport exportChangedEnrolmentRealisationIds(final long since) {
+        return exportChangedIds(ENROLMENT_EXPORT_PATH, since, entity -> entity.courseUnitRealisationId);
+    }
+
+    /**
+     * The ordinal the CUR export has got to, paging through the export without collecting the CURs.
+     */
+    public long getGreatestCourseUnitRealisationExportOrdinal() {
+        return exportChangedIds(CUR_EXPORT_PATH, 0, entity -> null).greatestOrdinal;
+    }
+
+    /**
+     * The ordinal the enrolment export has got to, paging through the export without collecting the CURs.
+     */
+    public long getGreatestEnrolmentExportOrdinal() {
+        return exportChangedIds(ENROLMENT_EXPORT_PATH, 0, entity -> null).greatestOrdinal;
+    }
+
+    private SisuChangeExport exportChangedIds(final String path,
+                                              final long since,
+                                              final Function<SisuChangeExport.SisuChangedEntity, String> realisationIdOf) {
+        Set<String> ids = new HashSet<>();
+        long ordinal = since;
+        while (true) {
+            SisuChangeExport.SisuChangeExportBatch batch =
+                getRestData(sisuBaseUrl + path + "?limit=" + EXPORT_LIMIT + "&since=" + ordinal,
+                    new ParameterizedTypeReference<SisuChangeExport.SisuChangeExportBatch>() {});
+            batch.entities.stream().map(realisationIdOf).filter(Objects::nonNull).forEach(ids::add);
+            // An empty page may report 0, which must neither move the cursor backwards nor keep us looping.
+            if (!batch.hasMore || batch.greatestOrdinal <= ordinal) {
+                ordinal = Math.max(ordinal, batch.greatestOrdinal);
+                break;
+            }
+            ordinal = batch.greatestOrdinal;
+        }
+        log.info("Sisu export {} since {} returned {} changed realisations, continuing next time from {}", path, since, ids.size(), ordinal);
+        return new SisuChangeExport(ids, ordinal);
     }
 
     private <T> T getRestData(
@@ -149,44 +249,36 @@ public class SisuClient {
         return batches;
     }
 
-    private <T> T queryWithArguments(Class<T> type, Arguments... arguments) {
+    private <T> T queryByIds(Class<T> type, List<String> ids) {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        GraphQLTemplate graphQLTemplate = new GraphQLTemplate(connectTimeout, socketTimeout);
-        GraphQLResponseEntity<T> responseEntity;
+        SisuGraphQLResponse<T> response;
 
         try {
-            GraphQLRequestEntity requestEntity = GraphQLRequestEntity.Builder()
-                .url(sisuBaseUrl + "/graphql")
-                .headers(Collections.singletonMap(API_KEY_HEADER_NAME, apiKey))
-                .request(type)
-                .arguments(arguments)
-                .scalars(LocalDate.class, LocalDateTime.class)
-                .build();
-
-            responseEntity = graphQLTemplate.query(requestEntity, type);
+            response = graphQLExecutor.execute(queryRegistry.getDocument(type), queryRegistry.idsVariables(ids), type);
+        } catch (ResourceAccessException e) {
+            throw new IntegrationConnectionException("Sisu GraphQL connection failure", e);
         } catch (Exception e) {
-            String desc = e instanceof GraphQLException ? ((GraphQLException) e).getDescription() : "";
-            throw new RuntimeException("GraphQL query failed with exception. " + desc, e);
+            throw new RuntimeException("GraphQL query failed with exception. ", e);
         } finally {
             stopWatch.stop();
-            log.info("GrapQL query {} took {} seconds", Arrays.asList(arguments), stopWatch.getTotalTimeSeconds());
+            log.info("GrapQL query {} {} took {} seconds", type.getSimpleName(), ids, stopWatch.getTotalTimeSeconds());
         }
-        if (responseEntity.getErrors() != null && responseEntity.getErrors().length > 0) {
-            if (!isOne404(responseEntity)) {
+        if (response.errors != null && response.errors.length > 0) {
+            if (!isOne404(response)) {
                 throw new RuntimeException("GraphQL query returned one or more errors. " +
-                    Arrays.stream(responseEntity.getErrors()).map(Error::toString).reduce("", (a, b) -> a + b + "\n")
+                    Arrays.stream(response.errors).map(Error::toString).reduce("", (a, b) -> a + b + "\n")
                 );
             }
         }
-        return responseEntity.getResponse();
+        return response.data;
     }
 
-    private boolean isOne404(GraphQLResponseEntity responseEntity) {
-        return responseEntity.getErrors() != null &&
-            responseEntity.getErrors().length == 1 &&
-            responseEntity.getErrors()[0].getMessage() != null &&
-            responseEntity.getErrors()[0].getMessage().contains("404: Not Found");
+    private boolean isOne404(SisuGraphQLResponse<?> response) {
+        return response.errors != null &&
+            response.errors.length == 1 &&
+            response.errors[0].getMessage() != null &&
+            response.errors[0].getMessage().contains("404: Not Found");
     }
 }
@@ -284,7 +284,7 @@ public class SisuCourseUnitRealisation {
 
     public static class SisuCURWrapper {
         @GraphQLProperty(name = "course_unit_realisations", arguments = {
-            @GraphQLArgument(name = "ids", type = "String")
+            @GraphQLArgument(name = "ids", type = "ID")
         })
         @SuppressWarnings("checkstyle:MemberName")
         public List<SisuCourseUnitRealisation> course_unit_realisations;
@@ -0,0 +1,86 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.aexp.nodes.graphql.internal.DefaultObjectMapperFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestOperations;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Sends GraphQL queries through the given RestOperations, so that they share its pooled connections,
+ * SSL context and interceptors instead of opening a new connection for every query.
+ * Requests and responses are (de)serialized with the nodes object mappers.
+ */
+public class SisuGraphQLExecutor {
+
+    private static final String API_KEY_HEADER_NAME = "X-Api-Key";
+
+    private final String url;
+    private final String apiKey;
+    private final RestOperations restOperations;
+    private final ObjectMapper serializer;
+    private final ObjectMapper deserializer;
+
+    public SisuGraphQLExecutor(String url, String apiKey, RestOperations restOperations) {
+        final DefaultObjectMapperFactory objectMapperFactory = new DefaultObjectMapperFactory();
+        this.url = url;
+        this.apiKey = apiKey;
+        this.restOperations = restOperations;
+        this.serializer = objectMapperFactory.newSerializerMapper();
+        this.deserializer = objectMapperFactory.newDeserializerMapper();
+    }
+
+    public <T> SisuGraphQLResponse<T> execute(String query, Map<String, Object> variables, Class<T> type) {
+        final byte[] payload = serialize(new GraphQLServerRequest(query, variables));
+        final JavaType responseType = deserializer.getTypeFactory().constructParametricType(SisuGraphQLResponse.class, type);
+
+        return restOperations.execute(url, HttpMethod.POST,
+            request -> {
+                request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                request.getHeaders().add(API_KEY_HEADER_NAME, apiKey);
+                request.getBody().write(payload);
+            },
+            response -> deserializer.readValue(response.getBody(), responseType));
+    }
+
+    private byte[] serialize(GraphQLServerRequest request) {
+        try {
+            return serializer.writeValueAsBytes(request);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize GraphQL request", e);
+        }
+    }
+
+    static class GraphQLServerRequest {
+        public final String query;
+        public final Map<String, Object> variables;
+
+        GraphQLServerRequest(String query, Map<String, Object> variables) {
+            this.query = query;
+            this.variables = variables;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import io.aexp.nodes.graphql.annotations.GraphQLArgument;
+import io.aexp.nodes.graphql.annotations.GraphQLIgnore;
+import io.aexp.nodes.graphql.annotations.GraphQLProperty;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.time.temporal.Temporal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * GraphQL query documents for the Sisu wrapper types, generated once from the annotated model classes.
+ *
+ * <p>The documents take the queried ids as the $ids variable, so a call only needs to bind the variable
+ * instead of reflecting over the model classes and rendering the ids into the query text. The root field passes
+ * the variable to the single {@link GraphQLArgument} of its {@link GraphQLProperty}, whose type is the type of one id
+ * in the Sisu schema.</p>
+ *
+ * <p>A model class that cannot be mapped to a query fails the application startup instead of the first
+ * synchronization. The documents are only sanity checked here; the tests validate them against the Sisu schema.</p>
+ */
+public class SisuGraphQLQueryRegistry {
+
+    public static final String IDS_VARIABLE = "ids";
+
+    private final Map<Class<?>, String> documents = new HashMap<>();
+
+    public SisuGraphQLQueryRegistry() {
+        register(SisuCourseUnitRealisation.SisuCURWrapper.class);
+        register(SisuPerson.SisuPersonWrapper.class);
+    }
+
+    public String getDocument(Class<?> wrapperType) {
+        final String document = documents.get(wrapperType);
+        if (document == null) {
+            throw new IllegalArgumentException("No GraphQL query registered for " + wrapperType.getName());
+        }
+        return document;
+    }
+
+    public Map<String, Object> idsVariables(List<String> ids) {
+        return Collections.singletonMap(IDS_VARIABLE, ids);
+    }
+
+    private void register(Class<?> wrapperType) {
+        final String document = generateDocument(wrapperType);
+        sanityCheck(wrapperType, document);
+        documents.put(wrapperType, document);
+    }
+
+    private static String generateDocument(Class<?> wrapperType) {
+        final List<Field> rootFields = selectableFields(wrapperType);
+        if (rootFields.size() != 1) {
+            throw new IllegalStateException(wrapperType.getName() + " must have exactly one root field, found " + rootFields.size());
+        }
+        final Field rootField = rootFields.get(0);
+        final GraphQLArgument idsArgument = idsArgument(rootField);
+        return String.format("query ($%s: [%s!]!) { %s(%s: $%s) %s }",
+            IDS_VARIABLE, idsArgument.type(), fieldName(rootField), idsArgument.name(), IDS_VARIABLE,
+            selectionSet(elementType(rootField), new ArrayDeque<>()));
+    }
+
+    private static GraphQLArgument idsArgument(Field rootField) {
+        final GraphQLProperty property = rootField.getAnnotation(GraphQLProperty.class);
+        if (property == null || property.arguments().length != 1) {
+            throw new IllegalStateException(rootField + " must declare exactly one GraphQL argument for the ids");
+        }
+        return property.arguments()[0];
+    }
+
+    private static String selectionSet(Class<?> type, Deque<Class<?>> path) {
+        if (path.contains(type)) {
+            throw new IllegalStateException("Cyclic GraphQL model: " + path + " -> " + type.getName());
+        }
+        path.push(type);
+        final List<Field> fields = selectableFields(type);
+        if (fields.isEmpty()) {
+            throw new IllegalStateException(type.getName() + " has no fields to select");
+        }
+        final String selections = fields.stream()
+            .map(field -> isLeaf(elementType(field))
+                ? fieldName(field)
+                : fieldName(field) + " " + selectionSet(elementType(field), path))
+            .collect(Collectors.joining(" "));
+        path.pop();
+        return "{ " + selections + " }";
+    }
+
+    private static List<Field> selectableFields(Class<?> type) {
+        // Fields of superclasses first
+        final Deque<Class<?>> hierarchy = new ArrayDeque<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.push(c);
+        }
+        return hierarchy.stream()
+            .flatMap(c -> Arrays.stream(c.getDeclaredFields()))
+            .filter(field -> !Modifier.isStatic(field.getModifiers()))
+            .filter(field -> !field.isSynthetic())
+            .filter(field -> !field.isAnnotationPresent(GraphQLIgnore.class))
+            .collect(Collectors.toList());
+    }
+
+    private static String fieldName(Field field) {
+        final GraphQLProperty property = field.getAnnotation(GraphQLProperty.class);
+        return property != null ? property.name() : field.getName();
+    }
+
+    private static Class<?> elementType(Field field) {
+        if (!Collection.class.isAssignableFrom(field.getType())) {
+            return field.getType();
+        }
+        final Type genericType = field.getGenericType();
+        if (genericType instanceof ParameterizedType) {
+            final Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            if (elementType instanceof Class) {
+                return (Class<?>) elementType;
+            }
+        }
+        throw new IllegalStateException("Cannot resolve the element type of " + field);
+    }
+
+    private static boolean isLeaf(Class<?> type) {
+        return type.isPrimitive()
+            || type.isEnum()
+            || CharSequence.class.isAssignableFrom(type)
+            || Number.class.isAssignableFrom(type)
+            || Boolean.class.equals(type)
+            || Temporal.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Catch a broken generator early by checking that the braces of the document are balanced and that no selection
+     * set is empty. This is not validation against the Sisu schema, which graphql-java does in the tests.
+     */
+    private static void sanityCheck(Class<?> wrapperType, String document) {
+        int depth = 0;
+        for (char c : document.toCharArray()) {
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            }
+            if (depth < 0) {
+                break;
+            }
+        }
+        if (depth != 0 || document.contains("{ }")) {
+            throw new IllegalStateException("Invalid GraphQL query generated for " + wrapperType.getName() + ": " + document);
+        }
+    }
+}
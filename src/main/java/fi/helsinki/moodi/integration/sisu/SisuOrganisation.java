@@ -46,7 +46,7 @@ public class SisuOrganisation {
     }
 
     public static class SisuOrganisationExportBatch {
-        public int greatestOrdinal;
+        public long greatestOrdinal;
         public boolean hasMore;
         public List<SisuOrganisation> entities = new ArrayList<>();
     }
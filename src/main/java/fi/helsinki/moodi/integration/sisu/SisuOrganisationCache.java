@@ -0,0 +1,106 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sisu organisations by id, refreshed ahead of expiry by RefreshSisuOrganisations.
+ *
+ * <p>Readers always get the cached copy, also while a refresh is running, and the new copy replaces it
+ * in one put once it is complete. Only a cold cache makes a reader wait for the export. Concurrent loads,
+ * whether started by readers or by the refresh, share one in-flight export.</p>
+ */
+@Component
+public class SisuOrganisationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SisuOrganisationCache.class);
+
+    private final SisuClient sisuClient;
+    private final CacheManager cacheManager;
+    private final AtomicReference<CompletableFuture<Map<String, SisuOrganisation>>> inFlightLoad = new AtomicReference<>();
+
+    @Autowired
+    public SisuOrganisationCache(SisuClient sisuClient, CacheManager cacheManager) {
+        this.sisuClient = sisuClient;
+        this.cacheManager = cacheManager;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, SisuOrganisation> getOrganisationsById() {
+        final Map<String, SisuOrganisation> organisationsById = getCache().get(SimpleKey.EMPTY, Map.class);
+        return organisationsById != null ? organisationsById : join(load());
+    }
+
+    /**
+     * Reloads the organisations. On failure the previous copy is kept.
+     */
+    public void refresh() {
+        try {
+            final Map<String, SisuOrganisation> organisationsById = join(load());
+            logger.info("Refreshed {} Sisu organisations", organisationsById.size());
+        } catch (RuntimeException e) {
+            logger.error("Refreshing Sisu organisations failed, keeping the previous copy", e);
+        }
+    }
+
+    private CompletableFuture<Map<String, SisuOrganisation>> load() {
+        final CompletableFuture<Map<String, SisuOrganisation>> load = new CompletableFuture<>();
+        while (!inFlightLoad.compareAndSet(null, load)) {
+            final CompletableFuture<Map<String, SisuOrganisation>> inFlight = inFlightLoad.get();
+            if (inFlight != null) {
+                return inFlight;
+            }
+        }
+        try {
+            final Map<String, SisuOrganisation> organisationsById = sisuClient.getAllOrganisationsById();
+            if (!organisationsById.isEmpty()) {
+                getCache().put(SimpleKey.EMPTY, organisationsById);
+            }
+            load.complete(organisationsById);
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+        } finally {
+            inFlightLoad.set(null);
+        }
+        return load;
+    }
+
+    private Map<String, SisuOrganisation> join(CompletableFuture<Map<String, SisuOrganisation>> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private Cache getCache() {
+        return cacheManager.getCache(SisuClient.ORGANISATIONS_BY_ID_CACHE);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static fi.helsinki.moodi.Constants.ACTIVE;
+
+/**
+ * The latest active organisation snapshots folded from the Sisu organisation export, and the export ordinal to continue from.
+ * Snapshots are identified by organisation id and snapshot time. Only the latest active snapshot of each organisation is kept,
+ * along with the times of the deactivated snapshots newer than it.
+ *
+ * <p>When the kept snapshot is deactivated, the earlier active snapshot to fall back to has not been kept, so the snapshots
+ * are incomplete and the export needs to be read again from the start. The deactivated snapshot times are carried over
+ * to that read, so that it skips the snapshots that are no longer active.</p>
+ */
+public class SisuOrganisationSnapshots {
+
+    private final Map<String, SisuOrganisation> latestActiveByOrgId = new HashMap<>();
+    private final Map<String, Set<LocalDateTime>> deactivatedTimesByOrgId;
+    private final boolean rereading;
+    private boolean incomplete;
+    private long greatestOrdinal;
+    private Map<String, SisuOrganisation> latestById = Collections.emptyMap();
+
+    public SisuOrganisationSnapshots() {
+        this(new HashMap<>(), false);
+    }
+
+    private SisuOrganisationSnapshots(Map<String, Set<LocalDateTime>> deactivatedTimesByOrgId, boolean rereading) {
+        this.deactivatedTimesByOrgId = deactivatedTimesByOrgId;
+        this.rereading = rereading;
+    }
+
+    /**
+     * Empty snapshots for reading the export again from the start, knowing which snapshots have been deactivated.
+     */
+    public synchronized SisuOrganisationSnapshots forReread() {
+        final Map<String, Set<LocalDateTime>> deactivated = new HashMap<>();
+        deactivatedTimesByOrgId.forEach((id, times) -> deactivated.put(id, new HashSet<>(times)));
+        return new SisuOrganisationSnapshots(deactivated, true);
+    }
+
+    public synchronized void fold(SisuOrganisation snapshot) {
+        final LocalDateTime snapshotDateTime = snapshotDateTime(snapshot);
+        final Set<LocalDateTime> deactivatedTimes = deactivatedTimesByOrgId.get(snapshot.id);
+        final SisuOrganisation latest = latestActiveByOrgId.get(snapshot.id);
+        if (ACTIVE.equals(snapshot.documentState) && ACTIVE.equals(snapshot.status)) {
+            if (deactivatedTimes != null && deactivatedTimes.contains(snapshotDateTime)) {
+                if (rereading) {
+                    // An earlier version of a snapshot that has since been deactivated
+                    return;
+                }
+                // Activated again
+                removeDeactivatedTime(snapshot.id, snapshotDateTime);
+            }
+            if (latest == null || !snapshotDateTime.isBefore(snapshotDateTime(latest))) {
+                latestActiveByOrgId.put(snapshot.id, snapshot);
+                // Deactivated snapshots older than the kept one cannot take its place.
+                final Set<LocalDateTime> remaining = deactivatedTimesByOrgId.get(snapshot.id);
+                if (remaining != null) {
+                    remaining.removeIf(time -> time.isBefore(snapshotDateTime));
+                    if (remaining.isEmpty()) {
+                        deactivatedTimesByOrgId.remove(snapshot.id);
+                    }
+                }
+            }
+        } else {
+            if (latest == null || snapshotDateTime.isAfter(snapshotDateTime(latest))) {
+                deactivatedTimesByOrgId.computeIfAbsent(snapshot.id, id -> new HashSet<>()).add(snapshotDateTime);
+            } else if (snapshotDateTime.equals(snapshotDateTime(latest))) {
+                deactivatedTimesByOrgId.computeIfAbsent(snapshot.id, id -> new HashSet<>()).add(snapshotDateTime);
+                latestActiveByOrgId.remove(snapshot.id);
+                incomplete = true;
+            }
+        }
+    }
+
+    /**
+     * Record how far the export has been folded, and take the latest snapshots for reading.
+     */
+    public synchronized void completeFold(long greatestOrdinal) {
+        this.greatestOrdinal = greatestOrdinal;
+        this.latestById = Collections.unmodifiableMap(new HashMap<>(latestActiveByOrgId));
+    }
+
+    /**
+     * The latest active snapshot of each organisation as of the latest completed fold.
+     */
+    public synchronized Map<String, SisuOrganisation> getLatestById() {
+        return latestById;
+    }
+
+    /**
+     * Whether a kept snapshot has been deactivated, so that an earlier active snapshot of its organisation may be missing.
+     */
+    public synchronized boolean isIncomplete() {
+        return incomplete;
+    }
+
+    public synchronized long getGreatestOrdinal() {
+        return greatestOrdinal;
+    }
+
+    private void removeDeactivatedTime(String orgId, LocalDateTime snapshotDateTime) {
+        final Set<LocalDateTime> deactivatedTimes = deactivatedTimesByOrgId.get(orgId);
+        deactivatedTimes.remove(snapshotDateTime);
+        if (deactivatedTimes.isEmpty()) {
+            deactivatedTimesByOrgId.remove(orgId);
+        }
+    }
+
+    private static LocalDateTime snapshotDateTime(SisuOrganisation snapshot) {
+        return snapshot.snapshotDateTime != null ? snapshot.snapshotDateTime : LocalDateTime.MIN;
+    }
+}
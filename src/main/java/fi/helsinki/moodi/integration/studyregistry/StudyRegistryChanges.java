@@ -0,0 +1,35 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.studyregistry;
+
+import java.util.Set;
+
+/**
+ * Realisations changed in the study registry since a pair of export positions, and the positions to continue from.
+ */
+public class StudyRegistryChanges {
+    public final Set<String> realisationIds;
+    public final long curExportOrdinal;
+    public final long enrolmentExportOrdinal;
+
+    public StudyRegistryChanges(Set<String> realisationIds, long curExportOrdinal, long enrolmentExportOrdinal) {
+        this.realisationIds = realisationIds;
+        this.curExportOrdinal = curExportOrdinal;
+        this.enrolmentExportOrdinal = enrolmentExportOrdinal;
+    }
+}
@@ -17,6 +17,7 @@
 
 package fi.helsinki.moodi.integration.studyregistry;
 
+import fi.helsinki.moodi.integration.sisu.SisuChangeExport;
 import fi.helsinki.moodi.integration.sisu.SisuClient;
 import fi.helsinki.moodi.integration.sisu.SisuCourseUnitRealisation;
 import fi.helsinki.moodi.integration.sisu.SisuPerson;
@@ -24,10 +25,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
@@ -59,4 +63,28 @@ public class StudyRegistryService {
         return sisuCurs.stream()
             .map(cur -> cur.toStudyRegistryCourseUnitRealisation(teachersById)).collect(Collectors.toList());
     }
+
+    /**
+     * Collect realisations whose own data or enrolments have changed since the given export ordinals.
+     */
+    public StudyRegistryChanges getChangesSince(final long curExportOrdinal, final long enrolmentExportOrdinal) {
+        SisuChangeExport curChanges = sisuClient.exportChangedCourseUnitRealisationIds(curExportOrdinal);
+        SisuChangeExport enrolmentChanges = sisuClient.exportChangedEnrolmentRealisationIds(enrolmentExportOrdinal);
+
+        Set<String> realisationIds = new HashSet<>(curChanges.courseUnitRealisationIds);
+        realisationIds.addAll(enrolmentChanges.courseUnitRealisationIds);
+
+        return new StudyRegistryChanges(realisationIds, curChanges.greatestOrdinal, enrolmentChanges.greatestOrdinal);
+    }
+
+    /**
+     * No changed realisations, just the current end of the exports. Pages through the whole exports, so this is
+     * only for starting to follow the changes once, outside the synchronization runs.
+     */
+    public StudyRegistryChanges getLatestChanges() {
+        return new StudyRegistryChanges(
+            Collections.emptySet(),
+            sisuClient.getGreatestCourseUnitRealisationExportOrdinal(),
+            sisuClient.getGreatestEnrolmentExportOrdinal());
+    }
 }
@@ -41,19 +41,18 @@ public class IncrementalSynchronizationJob {
         this.synchronizationService = synchronizationService;
     }
 
-    // Run every 1 hour
-    @Scheduled(initialDelay = 60000, fixedDelay = 3600000)
+    // Run every 5 minutes by default
+    @Scheduled(initialDelay = 60000, fixedDelayString = "${synchronize.INCREMENTAL.intervalMillis:300000}")
     public void execute() {
         if (isEnabled()) {
             synchronizationService.synchronize(INCREMENTAL);
         }
     }
 
-    // Has been disabled since 9/2016, as Oodi API did not really support getting enrollment updates.
-    // Do not enable until that is working AND Incremental sync has been implemented for Sisu.
-    // If you enable this, remember to modify MoodiHealthIndicator.
+    // Changes are read from the Sisu CUR and enrolment exports, see SynchronizationService.
+    // MoodiHealthIndicator looks at the latest completed job of any type, so keep FULL sync enabled alongside this.
     private boolean isEnabled() {
         final String key = String.format("synchronize.%s.enabled", INCREMENTAL);
-        return false;
+        return environment.getRequiredProperty(key, Boolean.class);
     }
 }
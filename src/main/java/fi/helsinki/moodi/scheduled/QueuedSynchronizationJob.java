@@ -0,0 +1,77 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.scheduled;
+
+import fi.helsinki.moodi.exception.SynchronizationInProgressException;
+import fi.helsinki.moodi.service.synchronize.SynchronizationQueue;
+import fi.helsinki.moodi.service.synchronize.SynchronizationService;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Scheduled job that synchronizes the courses waiting in the synchronization queue,
+ * a small batch at a time.
+ */
+@Component
+public class QueuedSynchronizationJob {
+
+    private static final Logger logger = getLogger(QueuedSynchronizationJob.class);
+
+    private final SynchronizationQueue synchronizationQueue;
+    private final SynchronizationService synchronizationService;
+    private final int batchSize;
+
+    @Autowired
+    public QueuedSynchronizationJob(SynchronizationQueue synchronizationQueue,
+                                    SynchronizationService synchronizationService,
+                                    @Value("${synchronize.queue.batchSize:20}") int batchSize) {
+        this.synchronizationQueue = synchronizationQueue;
+        this.synchronizationService = synchronizationService;
+        this.batchSize = batchSize;
+    }
+
+    // Run every 10 seconds by default
+    @Scheduled(initialDelay = 60000, fixedDelayString = "${synchronize.queue.intervalMillis:10000}")
+    public void execute() {
+        if (synchronizationService.isSynchronizationInProgress()) {
+            // The queued courses wait for the next scheduled run.
+            return;
+        }
+        List<String> realisationIds = synchronizationQueue.drain(batchSize);
+        while (!realisationIds.isEmpty()) {
+            try {
+                synchronizationService.synchronizeCourses(realisationIds);
+            } catch (SynchronizationInProgressException e) {
+                // Try again once the run in progress is done.
+                realisationIds.forEach(realisationId -> synchronizationQueue.enqueue(realisationId, "Synchronization in progress"));
+                return;
+            } catch (Exception e) {
+                // The courses are dropped from the queue. They are synchronized again by the next FULL or INCREMENTAL run.
+                logger.error("Synchronization of queued courses " + realisationIds + " failed", e);
+            }
+            realisationIds = synchronizationQueue.drain(batchSize);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.scheduled;
+
+import fi.helsinki.moodi.integration.sisu.SisuOrganisationCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+@Component
+public class RefreshSisuOrganisations {
+
+    private final SisuOrganisationCache sisuOrganisationCache;
+
+    @Autowired
+    public RefreshSisuOrganisations(SisuOrganisationCache sisuOrganisationCache) {
+        this.sisuOrganisationCache = sisuOrganisationCache;
+    }
+
+    // Warms the cache soon after startup and then refreshes it well before the cache entry expires.
+    @Scheduled(initialDelay = 10000, fixedDelayString = "${SisuOrganisationCache.refreshIntervalMillis:2700000}")
+    public void execute() {
+        sisuOrganisationCache.refresh();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.batch;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How BatchProcessor splits and executes a list of items: chunk size, how many chunks may run at once,
+ * how many times a failing chunk is attempted and how long a single attempt may take.
+ */
+public final class BatchPolicy {
+
+    private final int batchSize;
+    private final int parallelism;
+    private final int maxAttempts;
+    private final Duration timeout;
+
+    private BatchPolicy(int batchSize, int parallelism, int maxAttempts, Duration timeout) {
+        checkArgument(batchSize > 0, "batchSize must be positive");
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+        this.timeout = timeout;
+    }
+
+    public static BatchPolicy sequential(int batchSize) {
+        return new BatchPolicy(batchSize, 1, 1, null);
+    }
+
+    public BatchPolicy withParallelism(int parallelism) {
+        return new BatchPolicy(batchSize, parallelism, maxAttempts, timeout);
+    }
+
+    public BatchPolicy withMaxAttempts(int maxAttempts) {
+        return new BatchPolicy(batchSize, parallelism, maxAttempts, timeout);
+    }
+
+    public BatchPolicy withTimeout(Duration timeout) {
+        return new BatchPolicy(batchSize, parallelism, maxAttempts, timeout);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public boolean hasTimeout() {
+        return timeout != null;
+    }
+}
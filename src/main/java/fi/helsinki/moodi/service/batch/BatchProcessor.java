@@ -17,50 +17,132 @@
 
 package fi.helsinki.moodi.service.batch;
 
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static java.util.stream.Collectors.toList;
 import static org.slf4j.LoggerFactory.getLogger;
 
+/**
+ * Splits items into chunks in a single pass and hands each chunk to a ProcessBatch function.
+ * Chunks run one after another unless the BatchPolicy allows more parallelism, and results are always
+ * returned in chunk order. Retries and timeouts are applied per chunk.
+ */
 @Component
 public class BatchProcessor<T> {
 
     private static final Logger logger = getLogger(BatchProcessor.class);
+    private static final ThreadFactory THREAD_FACTORY = ConcurrentTasks.threadFactory("batch-processor-%d");
 
     public interface ProcessBatch<T> {
         List<T> apply(List<T> currentItems);
     }
 
     public List<T> process(final List<T> items,
-                           final ProcessBatch processBatch,
+                           final ProcessBatch<T> processBatch,
                            final int batchSize) {
-        return process(items, processBatch, newArrayList(), newArrayList(), batchSize);
+        return process(items, processBatch, BatchPolicy.sequential(batchSize));
     }
 
-    private List<T> process(final List<T> items,
-                            final ProcessBatch processBatch,
-                            final List<T> results,
-                            final List<T> processedItems,
-                            final int batchSize) {
-
-        List<T> itemsToProcess = items
-            .stream()
-            .filter(item -> !processedItems.contains(item))
-            .limit(batchSize)
-            .collect(Collectors.toList());
-
-        if (itemsToProcess.size() > 0) {
-            logger.info("Processing batch of {} items", itemsToProcess.size());
-            results.addAll(processBatch.apply(itemsToProcess));
-            processedItems.addAll(itemsToProcess);
-            return process(items, processBatch, results, processedItems, batchSize);
-        } else {
-            return results;
+    public List<T> process(final List<T> items,
+                           final ProcessBatch<T> processBatch,
+                           final BatchPolicy policy) {
+
+        final List<List<T>> chunks = Lists.partition(items, policy.getBatchSize());
+        if (chunks.isEmpty()) {
+            return newArrayList();
         }
 
+        // A timed out chunk may keep its thread busy until it reacts to the interrupt,
+        // so every attempt that has a timeout gets a fresh thread from a cached pool.
+        final ExecutorService timeoutExecutor = policy.hasTimeout() ? Executors.newCachedThreadPool(THREAD_FACTORY) : null;
+
+        try {
+            return policy.getParallelism() > 1 && chunks.size() > 1
+                ? processConcurrently(chunks, processBatch, policy, timeoutExecutor)
+                : processSequentially(chunks, processBatch, policy, timeoutExecutor);
+        } finally {
+            if (timeoutExecutor != null) {
+                timeoutExecutor.shutdownNow();
+            }
+        }
+    }
+
+    private List<T> processSequentially(final List<List<T>> chunks,
+                                        final ProcessBatch<T> processBatch,
+                                        final BatchPolicy policy,
+                                        final ExecutorService timeoutExecutor) {
+        final List<T> results = newArrayList();
+        for (List<T> chunk : chunks) {
+            results.addAll(processChunk(chunk, processBatch, policy, timeoutExecutor));
+        }
+        return results;
+    }
+
+    private List<T> processConcurrently(final List<List<T>> chunks,
+                                        final ProcessBatch<T> processBatch,
+                                        final BatchPolicy policy,
+                                        final ExecutorService timeoutExecutor) {
+        final List<Callable<List<T>>> tasks = chunks.stream()
+            .map(chunk -> (Callable<List<T>>) () -> processChunk(chunk, processBatch, policy, timeoutExecutor))
+            .collect(toList());
+
+        final List<T> results = newArrayList();
+        ConcurrentTasks.invokeInOrder(tasks, policy.getParallelism(), THREAD_FACTORY).forEach(results::addAll);
+        return results;
+    }
+
+    private List<T> processChunk(final List<T> chunk,
+                                 final ProcessBatch<T> processBatch,
+                                 final BatchPolicy policy,
+                                 final ExecutorService timeoutExecutor) {
+        RuntimeException lastException = null;
+        for (int attempt = 1; attempt <= policy.getMaxAttempts(); attempt++) {
+            try {
+                logger.info("Processing batch of {} items", chunk.size());
+                return policy.hasTimeout()
+                    ? applyWithTimeout(chunk, processBatch, policy, timeoutExecutor)
+                    : processBatch.apply(chunk);
+            } catch (RuntimeException e) {
+                lastException = e;
+                if (attempt < policy.getMaxAttempts()) {
+                    logger.warn("Processing batch of {} items failed (attempt {}/{}), retrying",
+                        chunk.size(), attempt, policy.getMaxAttempts(), e);
+                }
+            }
+        }
+        throw lastException;
+    }
+
+    private List<T> applyWithTimeout(final List<T> chunk,
+                                     final ProcessBatch<T> processBatch,
+                                     final BatchPolicy policy,
+                                     final ExecutorService timeoutExecutor) {
+        final Future<List<T>> future = timeoutExecutor.submit(() -> processBatch.apply(chunk));
+        try {
+            return future.get(policy.getTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new BatchProcessingException(
+                String.format("Processing batch of %d items timed out after %s", chunk.size(), policy.getTimeout()), e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BatchProcessingException("Interrupted while processing batch", e);
+        } catch (ExecutionException e) {
+            throw ConcurrentTasks.unchecked(e.getCause());
+        }
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.batch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Runs tasks on pools of daemon threads that belong to a single call. The pool is shut down before the call returns,
+ * interrupting whatever still runs, so no threads are left behind by a failed call.
+ */
+public final class ConcurrentTasks {
+
+    private ConcurrentTasks() {
+    }
+
+    /**
+     * Daemon threads named after the given format, such as "moodle-client-%d".
+     */
+    public static ThreadFactory threadFactory(final String nameFormat) {
+        return new ThreadFactoryBuilder()
+            .setNameFormat(nameFormat)
+            .setDaemon(true)
+            .build();
+    }
+
+    /**
+     * Run the tasks at most parallelism at a time and return their results in task order, whichever finishes first.
+     * All tasks are waited for. If some of them fail, the error of the first failed task is thrown as is,
+     * with the errors of the other failed tasks suppressed in it.
+     */
+    public static <R> List<R> invokeInOrder(final List<? extends Callable<R>> tasks,
+                                            final int parallelism,
+                                            final ThreadFactory threadFactory) {
+        if (tasks.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()), threadFactory);
+        try {
+            final List<Future<R>> futures = tasks.stream().map(executor::submit).collect(toList());
+
+            final List<R> results = new ArrayList<>();
+            RuntimeException failure = null;
+            for (Future<R> future : futures) {
+                try {
+                    results.add(await(future));
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else if (failure != e) {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the task and return its result. The error of a failed task is thrown as is.
+     */
+    public static <R> R await(final Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BatchProcessingException("Interrupted while waiting for a task", e);
+        } catch (ExecutionException e) {
+            throw unchecked(e.getCause());
+        }
+    }
+
+    /**
+     * The error of a failed task as an unchecked exception. Runtime exceptions are returned as is, errors are thrown
+     * and checked exceptions are wrapped.
+     */
+    public static RuntimeException unchecked(final Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new BatchProcessingException("Error while running a task", cause);
+    }
+}
@@ -17,6 +17,7 @@
 
 package fi.helsinki.moodi.service.course;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 
 import java.util.List;
@@ -32,5 +33,9 @@ public interface CourseRepository extends JpaRepository<Course, Long> {
 
     List<Course> findByImportStatusInAndRemovedFalseAndMoodleIdNotNull(List<ImportStatus> importStatus);
 
-    List<Course> findByImportStatusInAndRealisationIdInAndMoodleIdNotNull(List<ImportStatus> importStatuses, List<String> realisationIds);
+    List<Course> findByImportStatusInAndRemovedFalseAndRealisationIdInAndMoodleIdNotNull(
+        List<ImportStatus> importStatuses, List<String> realisationIds);
+
+    List<Course> findByImportStatusInAndRemovedFalseAndMoodleIdNotNullAndIdGreaterThanOrderByIdAsc(
+        List<ImportStatus> importStatuses, Long id, Pageable pageable);
 }
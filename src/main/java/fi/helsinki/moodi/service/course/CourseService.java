@@ -17,14 +17,24 @@
 
 package fi.helsinki.moodi.service.course;
 
+import com.google.common.collect.Lists;
 import fi.helsinki.moodi.integration.moodle.MoodleService;
 import fi.helsinki.moodi.service.time.TimeService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static fi.helsinki.moodi.exception.NotFoundException.notFoundException;
@@ -35,22 +45,61 @@ import static fi.helsinki.moodi.service.course.Course.ImportStatus.*;
 public class CourseService {
 
     private static final int MAX_IMPORT_TIME_SECONDS = 7200;
+    // Keeps the IN list well below database bind parameter limits.
+    private static final int REALISATION_ID_CHUNK_SIZE = 1000;
+    private static final int WRITE_BACK_BATCH_SIZE = 500;
+
+    private static final String UPDATE_IMPORT_STATUS_SQL = "update course set import_status = ?, modified = ? where id = ?";
+    private static final String UPDATE_REMOVED_SQL = "update course set removed = true, removed_message = ?, modified = ? where id = ?";
 
     private final CourseRepository courseRepository;
     private final TimeService timeService;
     private final MoodleService moodleService;
+    private final JdbcTemplate jdbcTemplate;
 
     @Autowired
-    public CourseService(CourseRepository courseRepository, TimeService timeService, MoodleService moodleService) {
+    public CourseService(CourseRepository courseRepository, TimeService timeService, MoodleService moodleService, JdbcTemplate jdbcTemplate) {
         this.courseRepository = courseRepository;
         this.timeService = timeService;
         this.moodleService = moodleService;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Writes course state changes collected during a synchronization run with one batched update
+     * per target state, instead of loading and saving every course separately.
+     */
+    public void writeBack(final CourseStateChanges changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        final LocalDateTime modified = timeService.getCurrentUTCDateTime();
+        final Timestamp modifiedTimestamp = Timestamp.valueOf(modified);
+
+        final List<Course> completedCourses = persistedInIdOrder(changes.getCompletedCourses());
+        completedCourses.forEach(course -> course.modified = modified);
+        jdbcTemplate.batchUpdate(UPDATE_IMPORT_STATUS_SQL, completedCourses, WRITE_BACK_BATCH_SIZE, (ps, course) -> {
+            ps.setString(1, COMPLETED.name());
+            ps.setTimestamp(2, modifiedTimestamp);
+            ps.setLong(3, course.id);
+        });
+
+        final Map<Course, String> removedCourses = changes.getRemovedCourses();
+        final List<Course> removed = persistedInIdOrder(removedCourses.keySet());
+        removed.forEach(course -> course.modified = modified);
+        jdbcTemplate.batchUpdate(UPDATE_REMOVED_SQL, removed, WRITE_BACK_BATCH_SIZE, (ps, course) -> {
+            ps.setString(1, removedCourses.get(course));
+            ps.setTimestamp(2, modifiedTimestamp);
+            ps.setLong(3, course.id);
+        });
     }
 
-    public void markAsRemoved(Course course, String message) {
-        course.removed = true;
-        course.removedMessage = message;
-        saveCourse(course);
+    private List<Course> persistedInIdOrder(final Collection<Course> courses) {
+        // Courses that were never saved have nothing to write back. Updating in id order keeps row locking predictable.
+        return courses.stream()
+            .filter(course -> Objects.nonNull(course.id))
+            .sorted(Comparator.comparing(course -> course.id))
+            .collect(Collectors.toList());
     }
 
     public Optional<Course> findByRealisationId(final String realisationId) {
@@ -61,6 +110,15 @@ public class CourseService {
         return courseRepository.findByImportStatusInAndRemovedFalseAndMoodleIdNotNull(newArrayList(COMPLETED, COMPLETED_FAILED));
     }
 
+    /**
+     * One window of the courses returned by findAllCompletedWithMoodleId, in id order. Courses are paged by id
+     * rather than by offset, so courses that get removed while earlier windows are processed do not shift the next window.
+     */
+    public List<Course> findCompletedWithMoodleIdAfter(final long afterCourseId, final int windowSize) {
+        return courseRepository.findByImportStatusInAndRemovedFalseAndMoodleIdNotNullAndIdGreaterThanOrderByIdAsc(
+            newArrayList(COMPLETED, COMPLETED_FAILED), afterCourseId, PageRequest.of(0, windowSize));
+    }
+
     public Course createCourse(final String realisationId, final Long moodleCourseId, final String creatorUsername) {
         final Course course = new Course();
         course.created = timeService.getCurrentUTCDateTime();
@@ -92,7 +150,12 @@ public class CourseService {
     }
 
     public List<Course> findCompletedWithMoodleIdByRealisationIds(List<String> realisationIds) {
-        return courseRepository.findByImportStatusInAndRealisationIdInAndMoodleIdNotNull(newArrayList(COMPLETED, COMPLETED_FAILED), realisationIds);
+        final List<Course> courses = newArrayList();
+        for (List<String> chunk : Lists.partition(realisationIds, REALISATION_ID_CHUNK_SIZE)) {
+            courses.addAll(courseRepository.findByImportStatusInAndRemovedFalseAndRealisationIdInAndMoodleIdNotNull(
+                newArrayList(COMPLETED, COMPLETED_FAILED), chunk));
+        }
+        return courses;
     }
 
     public void cleanImportStatuses() {
@@ -0,0 +1,59 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.course;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static fi.helsinki.moodi.service.course.Course.ImportStatus.COMPLETED;
+
+/**
+ * Course state changes collected during a synchronization run. The changes are applied to the
+ * course objects immediately and written to the database in bulk by {@link CourseService#writeBack}.
+ * Safe to use from parallel synchronization workers.
+ */
+public class CourseStateChanges {
+
+    private final Collection<Course> completedCourses = new ConcurrentLinkedQueue<>();
+    private final Map<Course, String> removedCourses = new ConcurrentHashMap<>();
+
+    public void completeImport(final Course course) {
+        course.importStatus = COMPLETED;
+        completedCourses.add(course);
+    }
+
+    public void markAsRemoved(final Course course, final String message) {
+        course.removed = true;
+        course.removedMessage = message;
+        removedCourses.put(course, message);
+    }
+
+    public Collection<Course> getCompletedCourses() {
+        return completedCourses;
+    }
+
+    public Map<Course, String> getRemovedCourses() {
+        return removedCourses;
+    }
+
+    public boolean isEmpty() {
+        return completedCourses.isEmpty() && removedCourses.isEmpty();
+    }
+}
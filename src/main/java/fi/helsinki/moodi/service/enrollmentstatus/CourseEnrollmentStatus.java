@@ -0,0 +1,58 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.enrollmentstatus;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "course_enrollment_status")
+public class CourseEnrollmentStatus {
+
+    @Id
+    @SequenceGenerator(name = "course_enrollment_status_id_seq_generator", sequenceName = "course_enrollment_status_id_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "course_enrollment_status_id_seq_generator")
+    public Long id;
+
+    @Column(name = "course_id")
+    @NotNull
+    public Long courseId;
+
+    // Fingerprint of the Sisu students and teachers of the course when it was last verified.
+    @Column(name = "fingerprint")
+    @NotBlank
+    public String fingerprint;
+
+    // When the Moodle enrollments of the course were last fetched and found to match Sisu.
+    @Column(name = "verified")
+    @NotNull
+    public LocalDateTime verified;
+
+    @Column(name = "created")
+    @NotNull
+    public LocalDateTime created;
+
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.enrollmentstatus;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import fi.helsinki.moodi.integration.studyregistry.StudyRegistryCourseUnitRealisation;
+import fi.helsinki.moodi.service.course.Course;
+import fi.helsinki.moodi.service.time.TimeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.transaction.Transactional;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Remembers what the Sisu enrollments of each course looked like when the course was last fully synchronized,
+ * so that courses whose enrollments have not changed can skip the Moodle enrollment fetch and diff.
+ */
+@Service
+@Transactional
+public class CourseEnrollmentStatusService {
+
+    // Keeps the IN lists of the lookups well below the bind parameter limits of the database.
+    private static final int QUERY_BATCH_SIZE = 1000;
+
+    private final CourseEnrollmentStatusRepository courseEnrollmentStatusRepository;
+    private final TimeService timeService;
+    private final long maxVerificationAgeMillis;
+
+    @Autowired
+    public CourseEnrollmentStatusService(CourseEnrollmentStatusRepository courseEnrollmentStatusRepository,
+                                         TimeService timeService,
+                                         @Value("${synchronize.verification.maxAgeMillis:86400000}") long maxVerificationAgeMillis) {
+        this.courseEnrollmentStatusRepository = courseEnrollmentStatusRepository;
+        this.timeService = timeService;
+        this.maxVerificationAgeMillis = maxVerificationAgeMillis;
+    }
+
+    /**
+     * Fingerprint of everything in Sisu that decides the Moodle enrollments of the course: the students
+     * with their enrollment state, the teachers and the creator of the course. Ordering does not matter.
+     */
+    public String fingerprint(Course course, StudyRegistryCourseUnitRealisation cur) {
+        final Set<String> entries = new TreeSet<>();
+        cur.students.forEach(s -> entries.add("S " + s.userName + " " + s.isEnrolled));
+        cur.teachers.forEach(t -> entries.add("T " + t.userName));
+        entries.add("C " + course.creatorUsername);
+
+        final Hasher hasher = Hashing.sha256().newHasher();
+        entries.forEach(entry -> hasher.putString(entry, StandardCharsets.UTF_8).putByte((byte) '\n'));
+        return hasher.hash().toString();
+    }
+
+    /**
+     * IDs of the courses whose fingerprint matches the stored one and whose Moodle enrollments were verified
+     * recently enough. Once the verification gets too old the course is fully synchronized again,
+     * which also catches changes made directly in Moodle.
+     */
+    public Set<Long> findUnchangedCourseIds(Map<Long, String> fingerprintsByCourseId) {
+        final Set<Long> unchangedCourseIds = new HashSet<>();
+        if (maxVerificationAgeMillis <= 0) {
+            return unchangedCourseIds;
+        }
+        final LocalDateTime verifiedAfter = timeService.getCurrentDateTime().minus(maxVerificationAgeMillis, ChronoUnit.MILLIS);
+        for (List<Long> courseIds : Lists.partition(new ArrayList<>(fingerprintsByCourseId.keySet()), QUERY_BATCH_SIZE)) {
+            courseEnrollmentStatusRepository.findByCourseIdIn(courseIds).stream()
+                .filter(status -> status.verified.isAfter(verifiedAfter))
+                .filter(status -> Objects.equals(status.fingerprint, fingerprintsByCourseId.get(status.courseId)))
+                .forEach(status -> unchangedCourseIds.add(status.courseId));
+        }
+        return unchangedCourseIds;
+    }
+
+    /**
+     * Store the fingerprints of courses whose Moodle enrollments were just verified to match Sisu.
+     * Synchronization runs do not overlap, so the courses without a stored status can be inserted
+     * together with the updated ones.
+     */
+    public void markVerified(Map<Long, String> fingerprintsByCourseId) {
+        final LocalDateTime now = timeService.getCurrentDateTime();
+        final List<CourseEnrollmentStatus> statuses = new ArrayList<>();
+        final Set<Long> newCourseIds = new HashSet<>();
+        for (List<Long> courseIds : Lists.partition(new ArrayList<>(fingerprintsByCourseId.keySet()), QUERY_BATCH_SIZE)) {
+            newCourseIds.addAll(courseIds);
+            courseEnrollmentStatusRepository.findByCourseIdIn(courseIds).forEach(status -> {
+                newCourseIds.remove(status.courseId);
+                status.fingerprint = fingerprintsByCourseId.get(status.courseId);
+                status.verified = now;
+                statuses.add(status);
+            });
+        }
+        newCourseIds.forEach(courseId -> {
+            final CourseEnrollmentStatus status = new CourseEnrollmentStatus();
+            status.courseId = courseId;
+            status.fingerprint = fingerprintsByCourseId.get(courseId);
+            status.verified = now;
+            status.created = now;
+            statuses.add(status);
+        });
+        courseEnrollmentStatusRepository.saveAll(statuses);
+    }
+
+    /**
+     * Forget the fingerprints of the courses, so that they get fully synchronized on the next run.
+     */
+    public void forget(Set<Long> courseIds) {
+        for (List<Long> ids : Lists.partition(new ArrayList<>(courseIds), QUERY_BATCH_SIZE)) {
+            courseEnrollmentStatusRepository.deleteAll(courseEnrollmentStatusRepository.findByCourseIdIn(ids));
+        }
+    }
+}
@@ -20,11 +20,13 @@ package fi.helsinki.moodi.service.importing;
 import com.google.common.base.Stopwatch;
 import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
 import fi.helsinki.moodi.integration.moodle.MoodleService;
+import fi.helsinki.moodi.integration.moodle.MoodleUser;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryCourseUnitRealisation;
 import fi.helsinki.moodi.service.batch.BatchProcessor;
 import fi.helsinki.moodi.service.course.Course;
 import fi.helsinki.moodi.service.course.CourseService;
 import fi.helsinki.moodi.service.log.LoggingService;
+import fi.helsinki.moodi.service.synchronize.SynchronizationQueue;
 import fi.helsinki.moodi.service.util.MapperService;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,6 +34,8 @@ import org.springframework.stereotype.Component;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -53,6 +57,7 @@ public class EnrollmentService {
     private final CourseService courseService;
     private final LoggingService loggingService;
     private final BatchProcessor<Enrollment> batchProcessor;
+    private final SynchronizationQueue synchronizationQueue;
 
     @Autowired
     public EnrollmentService(
@@ -60,12 +65,14 @@ public class EnrollmentService {
         MapperService mapperService,
         CourseService courseService,
         LoggingService loggingService,
-        BatchProcessor batchProcessor) {
+        BatchProcessor batchProcessor,
+        SynchronizationQueue synchronizationQueue) {
         this.moodleService = moodleService;
         this.mapperService = mapperService;
         this.courseService = courseService;
         this.loggingService = loggingService;
         this.batchProcessor = batchProcessor;
+        this.synchronizationQueue = synchronizationQueue;
     }
 
     public void processEnrollments(final Course course,
@@ -93,16 +100,26 @@ public class EnrollmentService {
 
             loggingService.logCourseImportEnrollments(course, enrollmentsWithMoodleIds, enrollmentWarnings);
 
+            if (!enrollmentWarnings.isEmpty()) {
+                synchronizationQueue.enqueue(course.realisationId, enrollmentWarnings.size() + " enrollment warnings in import");
+            }
+
             logger.info("Process enrollments for realisationId {} finished in {}", course.realisationId, stopwatch.stop().toString());
 
         } catch (Exception e) {
             courseService.completeCourseImport(course.realisationId, false);
             logger.error("Processing enrollments failed for course " + course.realisationId, e);
+            synchronizationQueue.enqueue(course.realisationId, "Enrollments failed in import");
         }
     }
 
     private List<Enrollment> enrichEnrollmentsWithMoodleIds(final List<Enrollment> enrollments) {
-        enrollments.forEach(e -> e.moodleId = moodleService.getUser(e.usernameList).map(user -> user.id));
+        final Map<String, MoodleUser> moodleUsersByUsername = moodleService.getUsersByUsername(
+            enrollments.stream().filter(this::isUsernamePresent).flatMap(e -> e.usernameList.stream()).collect(toList()));
+
+        enrollments.forEach(e -> e.moodleId = isUsernamePresent(e)
+            ? e.usernameList.stream().map(moodleUsersByUsername::get).filter(Objects::nonNull).findFirst().map(user -> user.id)
+            : Optional.empty());
         return enrollments;
     }
 
@@ -30,6 +30,7 @@ import fi.helsinki.moodi.service.course.Course;
 import fi.helsinki.moodi.service.course.CourseService;
 import fi.helsinki.moodi.service.dto.CourseDto;
 import fi.helsinki.moodi.service.log.LoggingService;
+import fi.helsinki.moodi.service.synchronize.SynchronizationQueue;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -51,6 +52,7 @@ public class ImportingService {
     private final EnrollmentService enrollmentExecutor;
     private final LoggingService loggingService;
     private final SisuClient sisuClient;
+    private final SynchronizationQueue synchronizationQueue;
     private static final Logger logger = getLogger(ImportingService.class);
 
     @Autowired
@@ -62,7 +64,8 @@ public class ImportingService {
         MoodleCourseBuilder moodleCourseBuilder,
         EnrollmentService enrollmentExecutor,
         LoggingService loggingService,
-        SisuClient sisuClient) {
+        SisuClient sisuClient,
+        SynchronizationQueue synchronizationQueue) {
 
         this.moodleService = moodleService;
         this.courseService = courseService;
@@ -72,6 +75,7 @@ public class ImportingService {
         this.enrollmentExecutor = enrollmentExecutor;
         this.loggingService = loggingService;
         this.sisuClient = sisuClient;
+        this.synchronizationQueue = synchronizationQueue;
     }
 
     public Result<ImportCourseResponse, String> importCourse(final ImportCourseRequest request) {
@@ -113,6 +117,8 @@ public class ImportingService {
         // If this fails, the course gets created in Moodle without users, and sync will later try and put them in place.
         enrollmentExecutor.processEnrollments(dbCourse, courseUnitRealisation, moodleCourseId);
         loggingService.logCourseImport(dbCourse);
+        // Catch enrollments that changed in Sisu while the course was being created.
+        synchronizationQueue.enqueue(request.realisationId, "Course imported");
         return Result.success(new ImportCourseResponse(moodleCourseId));
     }
 
@@ -76,7 +76,7 @@ public class SynchronizationSummaryLog {
                 item.getEnrichmentStatus(),
                 item.getProcessingStatus(),
                 new UserEnrollmentsLogEntry(
-                    getEnrollmentDetailsSummary(userSyncronizationItemLogEntries),
+                    getEnrollmentDetailsSummary(userSyncronizationItemLogEntries, item.getReleasedUserItemCounts()),
                     getFailedEnrollmentResults(userSyncronizationItemLogEntries)),
                 item.getEnrichmentMessage(),
                 item.getProcessingMessage()
@@ -87,8 +87,11 @@ public class SynchronizationSummaryLog {
         }
     }
 
-    private static Map<UserSynchronizationItemStatus, Long> getEnrollmentDetailsSummary(List<UserSyncronizationItemLogEntry> items) {
-        return items.stream().collect(Collectors.groupingBy(item -> item.status, Collectors.counting()));
+    private static Map<UserSynchronizationItemStatus, Long> getEnrollmentDetailsSummary(List<UserSyncronizationItemLogEntry> items,
+                                                                                        Map<UserSynchronizationItemStatus, Long> releasedCounts) {
+        Map<UserSynchronizationItemStatus, Long> summary = items.stream().collect(Collectors.groupingBy(item -> item.status, Collectors.counting()));
+        releasedCounts.forEach((status, count) -> summary.merge(status, count, Long::sum));
+        return summary;
     }
 
     private static Map<UserSynchronizationItemStatus, List<UserSyncronizationItemLogEntry>> getFailedEnrollmentResults(
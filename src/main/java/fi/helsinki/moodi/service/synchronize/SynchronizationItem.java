@@ -21,11 +21,15 @@ import fi.helsinki.moodi.integration.moodle.MoodleFullCourse;
 import fi.helsinki.moodi.integration.moodle.MoodleUserEnrollments;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryCourseUnitRealisation;
 import fi.helsinki.moodi.service.course.Course;
+import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentContext;
 import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentStatus;
 import fi.helsinki.moodi.service.synchronize.process.ProcessingStatus;
 import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem.UserSynchronizationItemStatus;
 
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.common.collect.Lists.newArrayList;
 
@@ -43,11 +47,14 @@ public class SynchronizationItem {
     private StudyRegistryCourseUnitRealisation studyRegistryCourse;
     private MoodleFullCourse moodleCourse;
     private List<MoodleUserEnrollments> moodleEnrollments;
+    private EnrichmentContext enrichmentContext = EnrichmentContext.EMPTY;
     private List<UserSynchronizationItem> userSynchronizationItems;
     private EnrichmentStatus enrichmentStatus;
     private ProcessingStatus processingStatus;
     private boolean unlock;
     private boolean removed;
+    private String enrollmentFingerprint;
+    private final Map<UserSynchronizationItemStatus, Long> releasedUserItemCounts = new EnumMap<>(UserSynchronizationItemStatus.class);
 
     public SynchronizationItem(Course course, SynchronizationType synchronizationType) {
         this(course, synchronizationType, false, null, null, null, null, newArrayList(), newArrayList(), EnrichmentStatus.IN_PROGRESS,
@@ -112,6 +119,28 @@ public class SynchronizationItem {
         this.moodleEnrollments = moodleEnrollments;
     }
 
+    /**
+     * Data prefetched for the run this item belongs to, such as the users already enrolled in its Moodle courses.
+     */
+    public EnrichmentContext getEnrichmentContext() {
+        return enrichmentContext;
+    }
+
+    public void setEnrichmentContext(EnrichmentContext enrichmentContext) {
+        this.enrichmentContext = enrichmentContext;
+    }
+
+    /**
+     * Fingerprint of the Sisu enrollments of the course, set during enrichment for courses that may skip Moodle.
+     */
+    public String getEnrollmentFingerprint() {
+        return enrollmentFingerprint;
+    }
+
+    public void setEnrollmentFingerprint(String enrollmentFingerprint) {
+        this.enrollmentFingerprint = enrollmentFingerprint;
+    }
+
     public void setUnlock(final boolean unlock) {
         this.unlock = unlock;
     }
@@ -184,4 +213,27 @@ public class SynchronizationItem {
     public void setUserSynchronizationItems(final List<UserSynchronizationItem> userSynchronizationItems) {
         this.userSynchronizationItems = userSynchronizationItems;
     }
+
+    /**
+     * Release the Sisu and Moodle data of a processed item, keeping only what the run summary needs.
+     * Successful user items are only counted, see {@link #getReleasedUserItemCounts()}.
+     */
+    public void releaseSynchronizationData() {
+        studyRegistryCourse = null;
+        moodleEnrollments = newArrayList();
+        enrichmentContext = EnrichmentContext.EMPTY;
+        final List<UserSynchronizationItem> retainedUserItems = newArrayList();
+        for (UserSynchronizationItem userItem : userSynchronizationItems) {
+            if (userItem.isSuccess()) {
+                releasedUserItemCounts.merge(userItem.getStatus(), 1L, Long::sum);
+            } else {
+                retainedUserItems.add(userItem);
+            }
+        }
+        userSynchronizationItems = retainedUserItems;
+    }
+
+    public Map<UserSynchronizationItemStatus, Long> getReleasedUserItemCounts() {
+        return releasedUserItemCounts;
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize;
+
+import fi.helsinki.moodi.service.time.TimeService;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Courses that need to be synchronized soon rather than on the next scheduled run, such as courses just imported.
+ * Repeated requests for a course are coalesced, and a course is handed out only once it has gone the debounce time
+ * without new requests, so that a burst of requests for one course is synchronized once. Thread-safe.
+ */
+@Component
+public class SynchronizationQueue {
+
+    private static final Logger logger = getLogger(SynchronizationQueue.class);
+
+    private final TimeService timeService;
+    private final boolean enabled;
+    private final long debounceMillis;
+
+    // Ordered by the latest request, oldest first.
+    private final Map<String, LocalDateTime> lastRequestedByRealisationId = new LinkedHashMap<>();
+
+    @Autowired
+    public SynchronizationQueue(TimeService timeService,
+                                @Value("${synchronize.queue.enabled:false}") boolean enabled,
+                                @Value("${synchronize.queue.debounceMillis:30000}") long debounceMillis) {
+        this.timeService = timeService;
+        this.enabled = enabled;
+        this.debounceMillis = debounceMillis;
+    }
+
+    public synchronized void enqueue(final String realisationId, final String reason) {
+        if (!enabled) {
+            return;
+        }
+        logger.info("Course {} queued for synchronization: {}", realisationId, reason);
+        lastRequestedByRealisationId.remove(realisationId);
+        lastRequestedByRealisationId.put(realisationId, timeService.getCurrentDateTime());
+    }
+
+    /**
+     * Take at most maxCourses courses that have not been requested again within the debounce time.
+     */
+    public synchronized List<String> drain(final int maxCourses) {
+        final LocalDateTime readyBefore = timeService.getCurrentDateTime().minus(debounceMillis, ChronoUnit.MILLIS);
+        final List<String> realisationIds = new ArrayList<>();
+        final Iterator<Map.Entry<String, LocalDateTime>> queued = lastRequestedByRealisationId.entrySet().iterator();
+        while (realisationIds.size() < maxCourses && queued.hasNext()) {
+            final Map.Entry<String, LocalDateTime> next = queued.next();
+            if (next.getValue().isAfter(readyBefore)) {
+                break;
+            }
+            realisationIds.add(next.getKey());
+            queued.remove();
+        }
+        return realisationIds;
+    }
+
+    public synchronized int size() {
+        return lastRequestedByRealisationId.size();
+    }
+}
@@ -18,29 +18,51 @@
 package fi.helsinki.moodi.service.synchronize;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import fi.helsinki.moodi.exception.CourseNotFoundException;
 import fi.helsinki.moodi.exception.SynchronizationInProgressException;
+import fi.helsinki.moodi.integration.moodle.MoodleUserNotFoundCache;
+import fi.helsinki.moodi.integration.studyregistry.StudyRegistryChanges;
+import fi.helsinki.moodi.integration.studyregistry.StudyRegistryService;
+import fi.helsinki.moodi.service.batch.ConcurrentTasks;
 import fi.helsinki.moodi.service.course.Course;
 import fi.helsinki.moodi.service.course.CourseService;
+import fi.helsinki.moodi.service.enrollmentstatus.CourseEnrollmentStatusService;
 import fi.helsinki.moodi.service.log.LoggingService;
 import fi.helsinki.moodi.service.synchronize.enrich.EnricherService;
 import fi.helsinki.moodi.service.synchronize.job.SynchronizationJobRun;
 import fi.helsinki.moodi.service.synchronize.job.SynchronizationJobRunService;
+import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentStatus;
 import fi.helsinki.moodi.service.synchronize.notify.SynchronizationItemNotifier;
+import fi.helsinki.moodi.service.synchronize.process.ProcessingStatus;
 import fi.helsinki.moodi.service.synchronize.process.ProcessorService;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem;
 import fi.helsinki.moodi.service.synclock.SyncLockService;
-import fi.helsinki.moodi.service.time.TimeService;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -50,7 +72,7 @@ import static org.slf4j.LoggerFactory.getLogger;
 public class SynchronizationService {
 
     private static final Logger logger = getLogger(SynchronizationService.class);
-    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ThreadFactory ENRICHER_THREAD_FACTORY = ConcurrentTasks.threadFactory("sync-enricher-%d");
 
     private final EnricherService enricherService;
     private final ProcessorService processorService;
@@ -58,8 +80,17 @@ public class SynchronizationService {
     private final LoggingService loggingService;
     private final CourseService courseService;
     private final SyncLockService syncLockService;
-    private final TimeService timeService;
+    private final StudyRegistryService studyRegistryService;
+    private final MoodleUserNotFoundCache moodleUserNotFoundCache;
+    private final CourseEnrollmentStatusService courseEnrollmentStatusService;
     private final List<SynchronizationItemNotifier> notifiers;
+    private final SynchronizationQueue synchronizationQueue;
+    private final int windowSize;
+    private final int pipelinedWindows;
+    private final long curExportStartOrdinal;
+    private final long enrolmentExportStartOrdinal;
+    // Held by synchronization runs and course synchronizations, which must not process the same courses at once.
+    private final ReentrantLock synchronizationLock = new ReentrantLock();
 
     @Autowired
     public SynchronizationService(
@@ -69,8 +100,15 @@ public class SynchronizationService {
         LoggingService loggingService,
         CourseService courseService,
         SyncLockService syncLockService,
-        TimeService timeService,
-        List<SynchronizationItemNotifier> notifiers) {
+        StudyRegistryService studyRegistryService,
+        MoodleUserNotFoundCache moodleUserNotFoundCache,
+        CourseEnrollmentStatusService courseEnrollmentStatusService,
+        List<SynchronizationItemNotifier> notifiers,
+        SynchronizationQueue synchronizationQueue,
+        @Value("${synchronize.windowSize:0}") int windowSize,
+        @Value("${synchronize.pipelinedWindows:0}") int pipelinedWindows,
+        @Value("${synchronize.INCREMENTAL.curExportStartOrdinal:-1}") long curExportStartOrdinal,
+        @Value("${synchronize.INCREMENTAL.enrolmentExportStartOrdinal:-1}") long enrolmentExportStartOrdinal) {
 
         this.enricherService = enricherService;
         this.processorService = processorService;
@@ -78,8 +116,15 @@ public class SynchronizationService {
         this.loggingService = loggingService;
         this.courseService = courseService;
         this.syncLockService = syncLockService;
-        this.timeService = timeService;
+        this.studyRegistryService = studyRegistryService;
+        this.moodleUserNotFoundCache = moodleUserNotFoundCache;
+        this.courseEnrollmentStatusService = courseEnrollmentStatusService;
         this.notifiers = notifiers;
+        this.synchronizationQueue = synchronizationQueue;
+        this.windowSize = windowSize;
+        this.pipelinedWindows = pipelinedWindows;
+        this.curExportStartOrdinal = curExportStartOrdinal;
+        this.enrolmentExportStartOrdinal = enrolmentExportStartOrdinal;
     }
 
     public SynchronizationSummary synchronize(final SynchronizationType type) {
@@ -88,18 +133,37 @@ public class SynchronizationService {
             throw new SynchronizationInProgressException(type);
         }
 
+        if (type == SynchronizationType.INCREMENTAL) {
+            initializeExportCursor();
+        }
+
+        // Waits for a course synchronization to finish, those are short.
+        synchronizationLock.lock();
+        try {
+            return doSynchronize(type);
+        } finally {
+            synchronizationLock.unlock();
+        }
+    }
+
+    private SynchronizationSummary doSynchronize(final SynchronizationType type) {
         final Stopwatch stopwatch = Stopwatch.createStarted();
         final long jobId  = begin(type);
+        final long userNotFoundHitsBefore = moodleUserNotFoundCache.getHitCount();
+        final long userNotFoundMissesBefore = moodleUserNotFoundCache.getMissCount();
         final List<SynchronizationItem> processedItems = new ArrayList<>();
         SynchronizationSummary summary;
         Exception exception = null;
         try {
             logger.info("Synchronization of type {} started with jobId {}", type, jobId);
 
-            final List<Course> courses = loadCourses(type);
-            final List<SynchronizationItem> items = makeItems(courses, type);
-            final List<SynchronizationItem> enrichedItems = enricherService.enrichItems(items);
-            processedItems.addAll(processorService.process(enrichedItems));
+            final Optional<StudyRegistryChanges> changes = loadChanges(type);
+            if (windowSize > 0) {
+                synchronizeInWindows(type, changes, processedItems);
+            } else {
+                processedItems.addAll(synchronizeItems(makeItems(loadCourses(type, changes), type)));
+            }
+            changes.ifPresent(c -> saveExportCursor(jobId, c, processedItems));
         } catch (Exception e) {
             logger.error("Exception in SynchronizationService", e);
             exception = e;
@@ -108,41 +172,260 @@ public class SynchronizationService {
         }
 
         logger.info("Synchronization with jobId {} completed in {}", jobId, stopwatch);
+        logger.info("Moodle user not found cache during jobId {}: {} hits, {} misses", jobId,
+            moodleUserNotFoundCache.getHitCount() - userNotFoundHitsBefore, moodleUserNotFoundCache.getMissCount() - userNotFoundMissesBefore);
 
         applyNotifiers(processedItems);
 
         return logSummary(summary);
     }
 
+    /**
+     * Synchronize one course right away, reading only its own data from Sisu and Moodle.
+     */
+    public SynchronizeCourseResponse synchronizeCourse(final String realisationId) {
+        return synchronizeCourses(Collections.singletonList(realisationId))
+            .stream()
+            .findFirst()
+            .map(SynchronizeCourseResponse::new)
+            .orElseThrow(() -> new CourseNotFoundException(realisationId));
+    }
+
+    /**
+     * Whether a synchronization run or a course synchronization is in progress.
+     */
+    public boolean isSynchronizationInProgress() {
+        return synchronizationJobRunService.isSynchronizationInProgress() || synchronizationLock.isLocked();
+    }
+
+    /**
+     * Synchronize the given courses right away, prefetching the Sisu and Moodle data of just these courses together.
+     * The courses are verified against Moodle even if their Sisu enrollments have not changed. Courses that are not
+     * imported, or are removed, are left out. Throws SynchronizationInProgressException while a synchronization run
+     * or another course synchronization is in progress, so that no course is synchronized twice at the same time.
+     */
+    public List<SynchronizationItem> synchronizeCourses(final List<String> realisationIds) {
+        if (synchronizationJobRunService.isSynchronizationInProgress() || !synchronizationLock.tryLock()) {
+            throw new SynchronizationInProgressException(realisationIds);
+        }
+        try {
+            final List<Course> courses = courseService.findCompletedWithMoodleIdByRealisationIds(realisationIds);
+            if (courses.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            courseEnrollmentStatusService.forget(courses.stream().map(course -> course.id).collect(toSet()));
+            final List<SynchronizationItem> processedItems = synchronizeItems(makeItems(courses, SynchronizationType.FULL));
+            logger.info("Synchronization of courses {} completed in {}", realisationIds, stopwatch);
+
+            applyNotifiers(processedItems);
+
+            return processedItems;
+        } finally {
+            synchronizationLock.unlock();
+        }
+    }
+
     private long begin(final SynchronizationType type) {
         return synchronizationJobRunService.begin(type);
     }
 
+    /**
+     * Before the first incremental run, save the export positions to start following the Sisu changes from,
+     * the full runs take care of what came before. Unless the start positions are configured, the current end
+     * of the exports is found by paging through the whole exports. That is done once, and outside the run,
+     * so that course synchronizations are not held up meanwhile.
+     */
+    private void initializeExportCursor() {
+        if (synchronizationJobRunService.findLatestIncrementalJobWithExportCursor().isPresent()) {
+            return;
+        }
+        final StudyRegistryChanges start;
+        if (curExportStartOrdinal >= 0 && enrolmentExportStartOrdinal >= 0) {
+            start = new StudyRegistryChanges(Collections.emptySet(), curExportStartOrdinal, enrolmentExportStartOrdinal);
+        } else {
+            logger.info("No Sisu export positions saved or configured yet, finding the current end of the exports");
+            start = studyRegistryService.getLatestChanges();
+        }
+        logger.info("Following Sisu changes from CUR export ordinal {} and enrolment export ordinal {}",
+            start.curExportOrdinal, start.enrolmentExportOrdinal);
+        synchronizationJobRunService.saveInitialExportCursor(start.curExportOrdinal, start.enrolmentExportOrdinal);
+    }
+
+    /**
+     * For incremental runs, read the Sisu exports from where the previous incremental run got to.
+     * The new export positions are saved only after processing, so a run that blows up is read again next time.
+     */
+    private Optional<StudyRegistryChanges> loadChanges(final SynchronizationType type) {
+        if (type != SynchronizationType.INCREMENTAL) {
+            return Optional.empty();
+        }
+        final SynchronizationJobRun lastRun = synchronizationJobRunService.findLatestIncrementalJobWithExportCursor()
+            .orElseThrow(() -> new IllegalStateException("No Sisu export positions saved"));
+        final long curExportOrdinal = lastRun.curExportOrdinal;
+        final long enrolmentExportOrdinal = lastRun.enrolmentExportOrdinal;
+
+        logger.info("Reading Sisu changes since CUR export ordinal {} and enrolment export ordinal {}", curExportOrdinal, enrolmentExportOrdinal);
+
+        return Optional.of(studyRegistryService.getChangesSince(curExportOrdinal, enrolmentExportOrdinal));
+    }
+
+    /**
+     * Move the export positions past the changes of this run. Courses that failed are not read again from the exports,
+     * that would hold the positions back for as long as a course keeps failing. They are queued to be synchronized
+     * on their own instead, and the next full run synchronizes them in any case. Locked courses are synchronized
+     * when they are unlocked.
+     */
+    private void saveExportCursor(final long jobId, final StudyRegistryChanges changes, final List<SynchronizationItem> processedItems) {
+        synchronizationJobRunService.saveExportCursor(jobId, changes.curExportOrdinal, changes.enrolmentExportOrdinal);
+        processedItems.stream()
+            .filter(this::isFailed)
+            .forEach(item -> synchronizationQueue.enqueue(item.getCourse().realisationId, "Failed in incremental synchronization"));
+    }
+
+    private boolean isFailed(final SynchronizationItem item) {
+        return item.getEnrichmentStatus() == EnrichmentStatus.ERROR || item.getProcessingStatus() == ProcessingStatus.ERROR;
+    }
+
     /**
      * Load courses to be synchronized.
      */
-    private List<Course> loadCourses(final SynchronizationType type) {
+    private List<Course> loadCourses(final SynchronizationType type, final Optional<StudyRegistryChanges> changes) {
         switch (type) {
             case FULL:
                 return courseService.findAllCompletedWithMoodleId();
             case UNLOCK:
                 return syncLockService.getAndUnlockLockedCourses();
             case INCREMENTAL:
-                final Optional<SynchronizationJobRun> lastRun =
-                    synchronizationJobRunService.findLatestCompletedIncrementalJob();
-                final LocalDateTime afterDate =
-                    lastRun.map(s -> s.completed).orElse(timeService.getCurrentUTCDateTime().minusDays(1));
+                return changes
+                    .map(c -> courseService.findCompletedWithMoodleIdByRealisationIds(new ArrayList<>(c.realisationIds)))
+                    .orElse(Collections.emptyList());
+            default:
+                return Collections.emptyList();
+        }
+    }
 
-                logger.debug("Last successful synchronization run at {}", FORMATTER.format(afterDate));
+    /**
+     * Enrich and process the items, and record which of them are now verified against Moodle.
+     */
+    private List<SynchronizationItem> synchronizeItems(final List<SynchronizationItem> items) {
+        final List<SynchronizationItem> processedItems = processorService.process(enricherService.enrichItems(items));
+        recordEnrollmentStatuses(processedItems);
+        return processedItems;
+    }
 
-                // Here we would call the Sisu export API to get changed courses.
-                // We would also need to get changed/new enrollments and match those to the course ID we have in DB.
-                final List<String> realisationIds = null;
+    /**
+     * Synchronize the courses a window at a time, so that the Sisu and Moodle data of only a few windows is held at once.
+     * Processed items keep only what the summary needs.
+     */
+    private void synchronizeInWindows(final SynchronizationType type,
+                                      final Optional<StudyRegistryChanges> changes,
+                                      final List<SynchronizationItem> processedItems) {
+        final Iterator<List<Course>> windows = loadWindows(type, changes);
+        if (pipelinedWindows > 0) {
+            synchronizeInPipeline(windows, type, processedItems);
+        } else {
+            windows.forEachRemaining(window -> processedItems.addAll(processWindow(enrichWindow(window, type))));
+        }
+    }
 
-                return courseService.findCompletedWithMoodleIdByRealisationIds(realisationIds);
-            default:
-                return Collections.emptyList();
+    /**
+     * Full runs read the courses a window at a time, other runs split the courses they load.
+     */
+    private Iterator<List<Course>> loadWindows(final SynchronizationType type, final Optional<StudyRegistryChanges> changes) {
+        if (type != SynchronizationType.FULL) {
+            return Lists.partition(loadCourses(type, changes), windowSize).iterator();
         }
+        return new AbstractIterator<List<Course>>() {
+            private long afterCourseId = 0;
+            private boolean lastWindowLoaded;
+
+            @Override
+            protected List<Course> computeNext() {
+                if (lastWindowLoaded) {
+                    return endOfData();
+                }
+                final List<Course> window = courseService.findCompletedWithMoodleIdAfter(afterCourseId, windowSize);
+                lastWindowLoaded = window.size() < windowSize;
+                if (window.isEmpty()) {
+                    return endOfData();
+                }
+                afterCourseId = window.get(window.size() - 1).id;
+                return window;
+            }
+        };
+    }
+
+    /**
+     * Enrich the next windows on a worker thread while the current window is processed, so that Sisu and Moodle
+     * are read for the next courses while the writes of the current ones are sent to Moodle. At most
+     * pipelinedWindows enriched windows wait for processing, which holds back reading when processing lags behind.
+     * Windows are still processed one at a time and in order.
+     */
+    private void synchronizeInPipeline(final Iterator<List<Course>> windows,
+                                       final SynchronizationType type,
+                                       final List<SynchronizationItem> processedItems) {
+        final ExecutorService enricher = Executors.newSingleThreadExecutor(ENRICHER_THREAD_FACTORY);
+        final Deque<Future<List<SynchronizationItem>>> enrichedWindows = new ArrayDeque<>();
+        try {
+            enqueueWindows(windows, type, enricher, enrichedWindows);
+            while (!enrichedWindows.isEmpty()) {
+                final List<SynchronizationItem> items = ConcurrentTasks.await(enrichedWindows.poll());
+                enqueueWindows(windows, type, enricher, enrichedWindows);
+                processedItems.addAll(processWindow(items));
+            }
+        } finally {
+            enricher.shutdownNow();
+        }
+    }
+
+    private void enqueueWindows(final Iterator<List<Course>> windows,
+                                final SynchronizationType type,
+                                final ExecutorService enricher,
+                                final Deque<Future<List<SynchronizationItem>>> enrichedWindows) {
+        while (enrichedWindows.size() < pipelinedWindows && windows.hasNext()) {
+            final List<Course> window = windows.next();
+            enrichedWindows.add(enricher.submit(() -> enrichWindow(window, type)));
+        }
+    }
+
+    private List<SynchronizationItem> enrichWindow(final List<Course> courses, final SynchronizationType type) {
+        logger.info("Enriching a window of {} courses", courses.size());
+        return enricherService.enrichItems(makeItems(courses, type));
+    }
+
+    private List<SynchronizationItem> processWindow(final List<SynchronizationItem> items) {
+        final List<SynchronizationItem> processedItems = processorService.process(items);
+        recordEnrollmentStatuses(processedItems);
+        processedItems.forEach(SynchronizationItem::releaseSynchronizationData);
+        return processedItems;
+    }
+
+    /**
+     * Remember the Sisu enrollments of courses whose Moodle enrollments now fully match them, so that the next
+     * runs can skip those courses while nothing changes. A course where some user could not be synchronized,
+     * or was not found in Moodle, is forgotten instead and gets fully synchronized on the next run.
+     */
+    private void recordEnrollmentStatuses(final List<SynchronizationItem> items) {
+        final Map<Long, String> verifiedFingerprintsByCourseId = new HashMap<>();
+        final Set<Long> unverifiedCourseIds = new HashSet<>();
+        items.stream()
+            .filter(item -> item.getEnrollmentFingerprint() != null && item.getEnrichmentStatus() == EnrichmentStatus.SUCCESS)
+            .forEach(item -> {
+                if (isVerified(item)) {
+                    verifiedFingerprintsByCourseId.put(item.getCourse().id, item.getEnrollmentFingerprint());
+                } else {
+                    unverifiedCourseIds.add(item.getCourse().id);
+                }
+            });
+        courseEnrollmentStatusService.markVerified(verifiedFingerprintsByCourseId);
+        courseEnrollmentStatusService.forget(unverifiedCourseIds);
+    }
+
+    private boolean isVerified(final SynchronizationItem item) {
+        return item.getProcessingStatus() == ProcessingStatus.SUCCESS
+            && item.getUserSynchronizationItems().stream().allMatch(UserSynchronizationItem::isSuccess);
     }
 
     /**
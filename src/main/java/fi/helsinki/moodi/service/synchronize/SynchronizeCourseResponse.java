@@ -0,0 +1,82 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize;
+
+import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentStatus;
+import fi.helsinki.moodi.service.synchronize.process.ProcessingStatus;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationAction;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationAction.UserSynchronizationActionStatus;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationActionType;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem.UserSynchronizationItemStatus;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public final class SynchronizeCourseResponse {
+    public static class User {
+        public String username;
+        public Long moodleUserId;
+        public UserSynchronizationItemStatus status;
+        public List<Action> actions;
+
+        public User(UserSynchronizationItem item) {
+            if (item.getStudent() != null) {
+                username = item.getStudent().userName;
+            } else if (item.getTeacher() != null) {
+                username = item.getTeacher().userName;
+            } else if (item.getMoodleUserEnrollments() != null) {
+                username = item.getMoodleUserEnrollments().username;
+            }
+            moodleUserId = item.getMoodleUserId();
+            status = item.getStatus();
+            actions = item.getActions().stream().map(Action::new).collect(Collectors.toList());
+        }
+    }
+
+    public static class Action {
+        public UserSynchronizationActionType actionType;
+        public Set<Long> roles;
+        public UserSynchronizationActionStatus status;
+
+        public Action(UserSynchronizationAction action) {
+            actionType = action.getActionType();
+            roles = action.getRoles();
+            status = action.getStatus();
+        }
+    }
+
+    public String realisationId;
+    public Long moodleId;
+    public EnrichmentStatus enrichmentStatus;
+    public String enrichmentMessage;
+    public ProcessingStatus processingStatus;
+    public String processingMessage;
+    public List<User> users;
+
+    public SynchronizeCourseResponse(SynchronizationItem item) {
+        realisationId = item.getCourse().realisationId;
+        moodleId = item.getCourse().moodleId;
+        enrichmentStatus = item.getEnrichmentStatus();
+        enrichmentMessage = item.getEnrichmentMessage();
+        processingStatus = item.getProcessingStatus();
+        processingMessage = item.getProcessingMessage();
+        users = item.getUserSynchronizationItems().stream().map(User::new).collect(Collectors.toList());
+    }
+}
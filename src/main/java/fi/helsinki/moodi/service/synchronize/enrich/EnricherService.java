@@ -19,26 +19,31 @@ package fi.helsinki.moodi.service.synchronize.enrich;
 
 import fi.helsinki.moodi.integration.moodle.MoodleFullCourse;
 import fi.helsinki.moodi.integration.moodle.MoodleService;
-import fi.helsinki.moodi.integration.moodle.MoodleUser;
 import fi.helsinki.moodi.integration.moodle.MoodleUserEnrollments;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryCourseUnitRealisation;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryService;
+import fi.helsinki.moodi.service.batch.ConcurrentTasks;
 import fi.helsinki.moodi.service.course.Course;
+import fi.helsinki.moodi.service.enrollmentstatus.CourseEnrollmentStatusService;
 import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
 import fi.helsinki.moodi.service.synchronize.SynchronizationType;
 import fi.helsinki.moodi.service.synclock.SyncLockService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
 import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.toList;
@@ -49,47 +54,99 @@ public class EnricherService {
     private final SyncLockService syncLockService;
     private final StudyRegistryService studyRegistryService;
     private final MoodleService moodleService;
-    private Map<String, StudyRegistryCourseUnitRealisation> prefetchedCursById = new HashMap<>();
-    private Map<Long, MoodleFullCourse> prefetchedMoodleCoursesById = new HashMap<>();
-    private final Map<String, MoodleUser> prefetchedMoodleUsers = new HashMap<>();
-    private final Map<Long, List<MoodleUserEnrollments>> prefetchedMoodleEnrollmentsByCourseId = new HashMap<>();
+    private final CourseEnrollmentStatusService courseEnrollmentStatusService;
+    private final boolean parallelPrefetch;
     private static final Logger logger = LoggerFactory.getLogger(EnricherService.class);
+    private static final ThreadFactory PREFETCH_THREAD_FACTORY = ConcurrentTasks.threadFactory("enrich-prefetch-%d");
 
     @Autowired
-    public EnricherService(SyncLockService syncLockService, StudyRegistryService studyRegistryService, MoodleService moodleService) {
+    public EnricherService(SyncLockService syncLockService, StudyRegistryService studyRegistryService, MoodleService moodleService,
+                           CourseEnrollmentStatusService courseEnrollmentStatusService,
+                           @Value("${synchronize.enrichment.parallelPrefetch:false}") boolean parallelPrefetch) {
         this.syncLockService = syncLockService;
         this.studyRegistryService = studyRegistryService;
         this.moodleService = moodleService;
+        this.courseEnrollmentStatusService = courseEnrollmentStatusService;
+        this.parallelPrefetch = parallelPrefetch;
     }
 
     /**
-     * Enrich items with data required in synchronization.
+     * Enrich items with data required in synchronization. The data prefetched for the items is kept
+     * in a context of their own, so concurrent enrichments do not share any state.
      */
     public List<SynchronizationItem> enrichItems(final List<SynchronizationItem> items) {
-        // First enrich all items with Sisu data
-        prefetchSisuCourses(items.stream().map(item -> item.getCourse().realisationId).collect(toList()));
-        items.forEach(this::enrichItemWithSisu);
+        // One query for the locks of the whole run instead of one per course
+        final Set<Long> lockedCourseIds = syncLockService.getLockedCourseIds();
+        final EnrichmentContext context = parallelPrefetch
+            ? prefetchInParallel(items, lockedCourseIds)
+            : prefetchInSequence(items, lockedCourseIds);
         // Then enrich those items that are not locked or finished with Moodle data
-        List<SynchronizationItem> activeItems = items.stream().filter(item -> !this.completed(item)).collect(toList());
-        // Prefetching enrollments also gives us enrolled Moodle users, so we don't have to fetch them separately later
-        prefetchMoodleCoursesEnrollmentsAndUsers(activeItems.stream().map(item -> item.getCourse().moodleId).collect(toList()));
-        activeItems.forEach(this::enrichItemWithMoodle);
+        getActiveItems(items).forEach(item -> enrichItemWithMoodle(item, context));
         return items;
     }
 
-    public void enrichItemWithSisu(final SynchronizationItem item) {
+    private EnrichmentContext prefetchInSequence(final List<SynchronizationItem> items, final Set<Long> lockedCourseIds) {
+        // First enrich all items with Sisu data
+        final EnrichmentContext sisuContext = prefetchSisuCourses(getRealisationIds(items));
+        enrichItemsWithSisu(items, lockedCourseIds, sisuContext);
+        // Prefetching enrollments also gives us enrolled Moodle users, so we don't have to fetch them separately later
+        return prefetchMoodleCoursesEnrollmentsAndUsers(sisuContext, getMoodleCourseIds(getActiveItems(items)));
+    }
+
+    /**
+     * Fetch Moodle data for all unlocked items while Sisu data is being fetched, instead of waiting for Sisu
+     * to tell which items are still active. The Moodle data of items that turn out to be ended or unchanged is
+     * discarded, so this costs Moodle more calls for the time saved.
+     */
+    private EnrichmentContext prefetchInParallel(final List<SynchronizationItem> items, final Set<Long> lockedCourseIds) {
+        final List<Long> moodleCourseIds = getMoodleCourseIds(items.stream()
+            .filter(item -> item.getSynchronizationType() == SynchronizationType.UNLOCK || !lockedCourseIds.contains(item.getCourse().id))
+            .collect(toList()));
+
+        final List<Callable<EnrichmentContext>> prefetches = Arrays.asList(
+            () -> prefetchMoodleCoursesEnrollmentsAndUsers(EnrichmentContext.EMPTY, moodleCourseIds),
+            () -> {
+                final EnrichmentContext sisuContext = prefetchSisuCourses(getRealisationIds(items));
+                enrichItemsWithSisu(items, lockedCourseIds, sisuContext);
+                return sisuContext;
+            });
+        final List<EnrichmentContext> contexts = ConcurrentTasks.invokeInOrder(prefetches, prefetches.size(), PREFETCH_THREAD_FACTORY);
+        return contexts.get(1).withMoodleCoursesOf(contexts.get(0), getMoodleCourseIds(getActiveItems(items)));
+    }
+
+    private void enrichItemsWithSisu(final List<SynchronizationItem> items, final Set<Long> lockedCourseIds,
+                                     final EnrichmentContext sisuContext) {
+        items.forEach(item -> enrichItemWithSisu(item, lockedCourseIds, sisuContext));
+        // Courses whose Sisu enrollments have not changed since Moodle was last verified need no Moodle data
+        completeUnchangedItems(items);
+    }
+
+    private List<SynchronizationItem> getActiveItems(final List<SynchronizationItem> items) {
+        return items.stream().filter(item -> !this.completed(item)).collect(toList());
+    }
+
+    private List<String> getRealisationIds(final List<SynchronizationItem> items) {
+        return items.stream().map(item -> item.getCourse().realisationId).collect(toList());
+    }
+
+    private List<Long> getMoodleCourseIds(final List<SynchronizationItem> items) {
+        return items.stream().map(item -> item.getCourse().moodleId).collect(toList());
+    }
+
+    public void enrichItemWithSisu(final SynchronizationItem item, final Set<Long> lockedCourseIds, final EnrichmentContext context) {
         try {
-            checkLockStatus(item);
-            enrichWithSisuCourse(item);
+            checkLockStatus(item, lockedCourseIds);
+            enrichWithSisuCourse(item, context);
         } catch (Exception e) {
             throw new EnrichException("Error enriching synchronization item", e);
         }
     }
 
-    public void enrichItemWithMoodle(final SynchronizationItem item) {
+    public void enrichItemWithMoodle(final SynchronizationItem item, final EnrichmentContext context) {
         try {
-            enrichWithMoodleCourse(item);
-            enrichWithMoodleEnrollments(item);
+            item.setEnrichmentContext(context);
+            enrichWithMoodleCourse(item, context);
+            enrichWithMoodleEnrollments(item, context);
             if (!completed(item)) {
                 item.completeEnrichmentPhase(EnrichmentStatus.SUCCESS, "Enrichment successful");
             }
@@ -98,6 +155,26 @@ public class EnricherService {
         }
     }
 
+    private void completeUnchangedItems(final List<SynchronizationItem> items) {
+        final Map<Long, SynchronizationItem> itemsByCourseId = new HashMap<>();
+        final Map<Long, String> fingerprintsByCourseId = new HashMap<>();
+        items.stream()
+            .filter(item -> !completed(item) && !item.isUnlock() && item.getCourse().id != null)
+            .forEach(item -> {
+                final String fingerprint = courseEnrollmentStatusService.fingerprint(item.getCourse(), item.getStudyRegistryCourse());
+                item.setEnrollmentFingerprint(fingerprint);
+                itemsByCourseId.put(item.getCourse().id, item);
+                fingerprintsByCourseId.put(item.getCourse().id, fingerprint);
+            });
+        if (fingerprintsByCourseId.isEmpty()) {
+            return;
+        }
+        final Set<Long> unchangedCourseIds = courseEnrollmentStatusService.findUnchangedCourseIds(fingerprintsByCourseId);
+        unchangedCourseIds.forEach(courseId -> itemsByCourseId.get(courseId)
+            .completeEnrichmentPhase(EnrichmentStatus.UNCHANGED, "Sisu enrollments unchanged since last verification"));
+        logger.info("{} of {} courses unchanged since last verification", unchangedCourseIds.size(), fingerprintsByCourseId.size());
+    }
+
     private boolean completed(final SynchronizationItem item) {
         if (item.getEnrichmentStatus() != EnrichmentStatus.IN_PROGRESS) {
             logger.debug("Item enrichment already completed, just return it");
@@ -106,12 +183,12 @@ public class EnricherService {
         return false;
     }
 
-    private void checkLockStatus(SynchronizationItem item) {
+    private void checkLockStatus(SynchronizationItem item, Set<Long> lockedCourseIds) {
         if (completed(item)) {
             return;
         }
         try {
-            final boolean isLocked = syncLockService.isLocked(item.getCourse());
+            final boolean isLocked = lockedCourseIds.contains(item.getCourse().id);
 
             if (SynchronizationType.UNLOCK.equals(item.getSynchronizationType())) {
                 item.setUnlock(true);
@@ -124,18 +201,18 @@ public class EnricherService {
         }
     }
 
-    public void prefetchSisuCourses(List<String> curIds) {
+    public EnrichmentContext prefetchSisuCourses(List<String> curIds) {
         List<String> uniqueSisuIds = new ArrayList<>(new LinkedHashSet<>(curIds));
-        prefetchedCursById = studyRegistryService.getSisuCourseUnitRealisations(uniqueSisuIds).stream()
-            .collect(Collectors.toMap(c -> c.realisationId, c -> c));
+        return EnrichmentContext.ofSisuCourses(studyRegistryService.getSisuCourseUnitRealisations(uniqueSisuIds).stream()
+            .collect(Collectors.toMap(c -> c.realisationId, c -> c)));
     }
 
-    void enrichWithSisuCourse(SynchronizationItem item) {
+    void enrichWithSisuCourse(SynchronizationItem item, EnrichmentContext context) {
         if (completed(item)) {
             return;
         }
         final Course course = item.getCourse();
-        final StudyRegistryCourseUnitRealisation cur = prefetchedCursById.get(course.realisationId);
+        final StudyRegistryCourseUnitRealisation cur = context.getCur(course.realisationId);
 
         if (cur == null) {
             item.completeEnrichmentPhase(
@@ -154,42 +231,21 @@ public class EnricherService {
         return cur.endDate.plusYears(1).isBefore(LocalDate.now());
     }
 
-    public void prefetchMoodleCoursesEnrollmentsAndUsers(List<Long> moodleCourseIds) {
+    public EnrichmentContext prefetchMoodleCoursesEnrollmentsAndUsers(EnrichmentContext context, List<Long> moodleCourseIds) {
         List<Long> uniqueMoodleCourseIds = new ArrayList<>(new LinkedHashSet<>(moodleCourseIds));
-        prefetchedMoodleCoursesById = moodleService.getCourses(uniqueMoodleCourseIds).stream()
+        final Map<Long, MoodleFullCourse> moodleCoursesById = moodleService.getCourses(uniqueMoodleCourseIds).stream()
             .collect(Collectors.toMap(c -> c.id, c -> c));
-        List<Long> foundCourseIds = new ArrayList<>(prefetchedMoodleCoursesById.keySet());
-        prefetchedMoodleUsers.clear();
-        prefetchedMoodleEnrollmentsByCourseId.clear();
-        moodleService.fetchEnrolledUsersForCourses(prefetchedMoodleEnrollmentsByCourseId, foundCourseIds);
-        prefetchedMoodleEnrollmentsByCourseId.values().forEach(enrollments -> {
-            if (enrollments != null) {
-                enrollments.forEach(moodleEnrollment -> {
-                    if (!prefetchedMoodleUsers.containsKey(moodleEnrollment.username)) {
-                        MoodleUser moodleUser = new MoodleUser();
-                        moodleUser.id = moodleEnrollment.id;
-                        prefetchedMoodleUsers.put(moodleEnrollment.username, moodleUser);
-                    }
-                });
-            }
-        });
-    }
-
-    public Optional<MoodleUser> getPrefetchedMoodleUser(List<String> usernameList) {
-        for (String username: usernameList) {
-            if (prefetchedMoodleUsers.containsKey(username)) {
-                return Optional.of(prefetchedMoodleUsers.get(username));
-            }
-        }
-        return Optional.empty();
+        final Map<Long, List<MoodleUserEnrollments>> moodleEnrollmentsByCourseId = new HashMap<>();
+        moodleService.fetchEnrolledUsersForCourses(moodleEnrollmentsByCourseId, new ArrayList<>(moodleCoursesById.keySet()));
+        return context.withMoodleCourses(moodleCoursesById, moodleEnrollmentsByCourseId);
     }
 
-    private void enrichWithMoodleCourse(final SynchronizationItem item) {
+    private void enrichWithMoodleCourse(final SynchronizationItem item, final EnrichmentContext context) {
         if (completed(item)) {
             return;
         }
         final Course course = item.getCourse();
-        final MoodleFullCourse moodleCourse = prefetchedMoodleCoursesById.get(course.moodleId);
+        final MoodleFullCourse moodleCourse = context.getMoodleCourse(course.moodleId);
 
         if (moodleCourse == null) {
             item.completeEnrichmentPhase(
@@ -200,12 +256,12 @@ public class EnricherService {
         }
     }
 
-    private void enrichWithMoodleEnrollments(final SynchronizationItem item) {
+    private void enrichWithMoodleEnrollments(final SynchronizationItem item, final EnrichmentContext context) {
         if (completed(item)) {
             return;
         }
         final Course course = item.getCourse();
-        final List<MoodleUserEnrollments> moodleEnrollments = prefetchedMoodleEnrollmentsByCourseId.get(course.moodleId);
+        final List<MoodleUserEnrollments> moodleEnrollments = context.getMoodleEnrollments(course.moodleId);
         if (moodleEnrollments == null) {
             item.completeEnrichmentPhase(
                 EnrichmentStatus.ERROR,
@@ -0,0 +1,125 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize.enrich;
+
+import fi.helsinki.moodi.integration.moodle.MoodleFullCourse;
+import fi.helsinki.moodi.integration.moodle.MoodleUser;
+import fi.helsinki.moodi.integration.moodle.MoodleUserEnrollments;
+import fi.helsinki.moodi.integration.studyregistry.StudyRegistryCourseUnitRealisation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Sisu and Moodle data prefetched for the items of one enrichment, shared by those items through
+ * enrichment and processing. Immutable, so runs and threads never see each other's data.
+ */
+public final class EnrichmentContext {
+
+    public static final EnrichmentContext EMPTY =
+        new EnrichmentContext(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, StudyRegistryCourseUnitRealisation> cursById;
+    private final Map<Long, MoodleFullCourse> moodleCoursesById;
+    private final Map<Long, List<MoodleUserEnrollments>> moodleEnrollmentsByCourseId;
+    private final Map<String, MoodleUser> moodleUsersByUsername;
+
+    private EnrichmentContext(Map<String, StudyRegistryCourseUnitRealisation> cursById,
+                              Map<Long, MoodleFullCourse> moodleCoursesById,
+                              Map<Long, List<MoodleUserEnrollments>> moodleEnrollmentsByCourseId) {
+        this.cursById = Collections.unmodifiableMap(new HashMap<>(cursById));
+        this.moodleCoursesById = Collections.unmodifiableMap(new HashMap<>(moodleCoursesById));
+        this.moodleEnrollmentsByCourseId = Collections.unmodifiableMap(new HashMap<>(moodleEnrollmentsByCourseId));
+        this.moodleUsersByUsername = Collections.unmodifiableMap(indexEnrolledUsers(this.moodleEnrollmentsByCourseId));
+    }
+
+    public static EnrichmentContext ofSisuCourses(Map<String, StudyRegistryCourseUnitRealisation> cursById) {
+        return new EnrichmentContext(cursById, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * A copy of this context with the given Moodle courses and enrollments. The users enrolled in the
+     * courses are indexed by username, so they need not be looked up from Moodle again.
+     */
+    public EnrichmentContext withMoodleCourses(Map<Long, MoodleFullCourse> moodleCoursesById,
+                                               Map<Long, List<MoodleUserEnrollments>> moodleEnrollmentsByCourseId) {
+        return new EnrichmentContext(cursById, moodleCoursesById, moodleEnrollmentsByCourseId);
+    }
+
+    /**
+     * A copy of this context with the Moodle data of the given courses taken from another context.
+     * The data of the other courses is left out, along with the users only enrolled in them.
+     */
+    public EnrichmentContext withMoodleCoursesOf(EnrichmentContext moodleContext, Collection<Long> moodleCourseIds) {
+        final Map<Long, MoodleFullCourse> retainedCoursesById = new HashMap<>();
+        final Map<Long, List<MoodleUserEnrollments>> retainedEnrollmentsByCourseId = new HashMap<>();
+        moodleCourseIds.forEach(moodleCourseId -> {
+            if (moodleContext.moodleCoursesById.containsKey(moodleCourseId)) {
+                retainedCoursesById.put(moodleCourseId, moodleContext.moodleCoursesById.get(moodleCourseId));
+            }
+            if (moodleContext.moodleEnrollmentsByCourseId.containsKey(moodleCourseId)) {
+                retainedEnrollmentsByCourseId.put(moodleCourseId, moodleContext.moodleEnrollmentsByCourseId.get(moodleCourseId));
+            }
+        });
+        return withMoodleCourses(retainedCoursesById, retainedEnrollmentsByCourseId);
+    }
+
+    private static Map<String, MoodleUser> indexEnrolledUsers(Map<Long, List<MoodleUserEnrollments>> moodleEnrollmentsByCourseId) {
+        final Map<String, MoodleUser> moodleUsersByUsername = new HashMap<>();
+        moodleEnrollmentsByCourseId.values().forEach(enrollments -> {
+            if (enrollments != null) {
+                enrollments.forEach(moodleEnrollment -> {
+                    if (!moodleUsersByUsername.containsKey(moodleEnrollment.username)) {
+                        MoodleUser moodleUser = new MoodleUser();
+                        moodleUser.id = moodleEnrollment.id;
+                        moodleUsersByUsername.put(moodleEnrollment.username, moodleUser);
+                    }
+                });
+            }
+        });
+        return moodleUsersByUsername;
+    }
+
+    public StudyRegistryCourseUnitRealisation getCur(String realisationId) {
+        return cursById.get(realisationId);
+    }
+
+    public MoodleFullCourse getMoodleCourse(Long moodleCourseId) {
+        return moodleCoursesById.get(moodleCourseId);
+    }
+
+    public List<MoodleUserEnrollments> getMoodleEnrollments(Long moodleCourseId) {
+        return moodleEnrollmentsByCourseId.get(moodleCourseId);
+    }
+
+    /**
+     * The first of the usernames found among the users enrolled in the prefetched Moodle courses.
+     */
+    public Optional<MoodleUser> getMoodleUser(List<String> usernameList) {
+        for (String username: usernameList) {
+            if (moodleUsersByUsername.containsKey(username)) {
+                return Optional.of(moodleUsersByUsername.get(username));
+            }
+        }
+        return Optional.empty();
+    }
+}
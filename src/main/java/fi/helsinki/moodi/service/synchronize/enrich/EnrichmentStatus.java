@@ -25,6 +25,8 @@ public enum EnrichmentStatus {
     COURSE_ENDED,
     SUCCESS,
     ERROR,
-    LOCKED
+    LOCKED,
+    // Sisu enrollments unchanged since Moodle was last verified, no Moodle data was fetched.
+    UNCHANGED
 
 }
@@ -61,4 +61,11 @@ public class SynchronizationJobRun {
 
     @Column(name = "completed")
     public LocalDateTime completed;
+
+    // Sisu export API positions reached by an incremental run. The next incremental run continues from these.
+    @Column(name = "cur_export_ordinal")
+    public Long curExportOrdinal;
+
+    @Column(name = "enrolment_export_ordinal")
+    public Long enrolmentExportOrdinal;
 }
@@ -36,6 +36,9 @@ public interface SynchronizationJobRunRepository extends JpaRepository<Synchroni
 
     Optional<SynchronizationJobRun> findFirstByTypeOrderByCompletedDesc(SynchronizationType type);
 
+    Optional<SynchronizationJobRun> findFirstByTypeAndCurExportOrdinalNotNullAndEnrolmentExportOrdinalNotNullOrderByStartedDesc(
+            SynchronizationType type);
+
     @Modifying
     @Query("delete from #{#entityName} where type = ?1 and started < ?2")
     void deleteByTypeAndDate(SynchronizationType type, LocalDateTime date);
@@ -65,10 +65,12 @@ public class SynchronizationJobRunService {
         return inProgressRuns.size() > 0;
     }
 
-    public Optional<SynchronizationJobRun> findLatestCompletedIncrementalJob() {
-        return synchronizationJobRunRepository.findFirstByTypeAndStatusInOrderByCompletedDesc(
-            INCREMENTAL,
-            Lists.newArrayList(COMPLETED_SUCCESS, COMPLETED_FAILURE));
+    /**
+     * Latest incremental run that got through processing and recorded how far it read the Sisu exports.
+     */
+    public Optional<SynchronizationJobRun> findLatestIncrementalJobWithExportCursor() {
+        return synchronizationJobRunRepository
+            .findFirstByTypeAndCurExportOrdinalNotNullAndEnrolmentExportOrdinalNotNullOrderByStartedDesc(INCREMENTAL);
     }
 
     public Optional<SynchronizationJobRun> findLatestJob(SynchronizationType type) {
@@ -101,6 +103,34 @@ public class SynchronizationJobRunService {
         synchronizationJobRunRepository.save(job);
     }
 
+    public void saveExportCursor(final Long id, final long curExportOrdinal, final long enrolmentExportOrdinal) {
+        final SynchronizationJobRun job = synchronizationJobRunRepository
+            .findById(id)
+            .orElseThrow(RuntimeException::new);
+
+        job.curExportOrdinal = curExportOrdinal;
+        job.enrolmentExportOrdinal = enrolmentExportOrdinal;
+
+        synchronizationJobRunRepository.save(job);
+    }
+
+    /**
+     * Record the export positions the incremental runs start following the Sisu changes from,
+     * as an incremental run that synchronized nothing.
+     */
+    public void saveInitialExportCursor(final long curExportOrdinal, final long enrolmentExportOrdinal) {
+        final SynchronizationJobRun job = new SynchronizationJobRun();
+        job.message = "Sisu export positions initialized";
+        job.started = timeService.getCurrentUTCDateTime();
+        job.completed = job.started;
+        job.status = COMPLETED_SUCCESS;
+        job.type = INCREMENTAL;
+        job.curExportOrdinal = curExportOrdinal;
+        job.enrolmentExportOrdinal = enrolmentExportOrdinal;
+
+        synchronizationJobRunRepository.save(job);
+    }
+
     public void cleanOldRuns() {
         for (final SynchronizationType type : SynchronizationType.values()) {
             final String retainLogsDurationString = environment.getRequiredProperty("logging.retain-logs");
@@ -25,5 +25,6 @@ public enum Action {
 
     SKIP,
     REMOVE,
+    UNCHANGED,
     SYNCHRONIZE
 }
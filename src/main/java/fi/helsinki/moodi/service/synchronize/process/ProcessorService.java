@@ -19,18 +19,24 @@ package fi.helsinki.moodi.service.synchronize.process;
 
 import com.google.common.collect.Lists;
 import fi.helsinki.moodi.exception.ProcessingException;
+import fi.helsinki.moodi.service.batch.ConcurrentTasks;
 import fi.helsinki.moodi.service.course.CourseService;
+import fi.helsinki.moodi.service.course.CourseStateChanges;
 import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
 
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
 
 /**
  * Process item by either skipping, removing or synchronizing it.
@@ -39,13 +45,19 @@ import static java.util.stream.Collectors.groupingBy;
 public class ProcessorService {
 
     private static final Logger logger = LoggerFactory.getLogger(ProcessorService.class);
+    private static final ThreadFactory WORKER_THREAD_FACTORY = ConcurrentTasks.threadFactory("sync-processor-%d");
+
     private final CourseService courseService;
     private final SynchronizingProcessor synchronizingProcessor;
+    private final int parallelism;
 
     @Autowired
-    public ProcessorService(CourseService courseService, SynchronizingProcessor synchronizingProcessor) {
+    public ProcessorService(CourseService courseService,
+                            SynchronizingProcessor synchronizingProcessor,
+                            @Value("${synchronize.processing.parallelism:1}") int parallelism) {
         this.courseService = courseService;
         this.synchronizingProcessor = synchronizingProcessor;
+        this.parallelism = parallelism;
     }
 
     private SynchronizationItem synchronizationError(SynchronizationItem item, ProcessingStatus status, Exception e) {
@@ -62,12 +74,26 @@ public class ProcessorService {
         return false;
     }
 
-    private SynchronizationItem synchronizeItem(SynchronizationItem item) {
+    private SynchronizationItem planItem(SynchronizationItem item) {
         if (completed(item)) {
             return item;
         }
         try {
-            item = synchronizingProcessor.doSynchronize(item);
+            return synchronizingProcessor.planSynchronization(item);
+        } catch (ProcessingException e) {
+            return synchronizationError(item, e.getStatus(), e);
+        } catch (Exception e) {
+            return synchronizationError(item, ProcessingStatus.ERROR, e);
+        }
+    }
+
+    private SynchronizationItem completeItem(SynchronizationItem item, final CourseStateChanges courseStateChanges) {
+        if (completed(item)) {
+            return item;
+        }
+        try {
+            item = synchronizingProcessor.completeSynchronization(item);
+            courseStateChanges.completeImport(item.getCourse());
         } catch (ProcessingException e) {
             return synchronizationError(item, e.getStatus(), e);
         } catch (Exception e) {
@@ -76,12 +102,12 @@ public class ProcessorService {
         return item;
     }
 
-    private SynchronizationItem removeItem(final SynchronizationItem item) {
+    private SynchronizationItem removeItem(final SynchronizationItem item, final CourseStateChanges courseStateChanges) {
         if (completed(item)) {
             return item;
         }
         try {
-            courseService.markAsRemoved(item.getCourse(), item.getEnrichmentStatus().toString());
+            courseStateChanges.markAsRemoved(item.getCourse(), item.getEnrichmentStatus().toString());
             item.completeProcessingPhase(ProcessingStatus.SUCCESS, "Removed", true);
         } catch (ProcessingException e) {
             return synchronizationError(item, e.getStatus(), e);
@@ -105,7 +131,28 @@ public class ProcessorService {
         return item;
     }
 
+    private SynchronizationItem leaveUnchangedItem(final SynchronizationItem item) {
+        if (completed(item)) {
+            return item;
+        }
+        item.completeProcessingPhase(ProcessingStatus.SUCCESS, "Unchanged since last verification");
+        return item;
+    }
+
+    /**
+     * Process the items and write the resulting course state changes back in bulk once all items
+     * have been processed. Changes collected before a failure are still written.
+     */
     public List<SynchronizationItem> process(final List<SynchronizationItem> items) {
+        final CourseStateChanges courseStateChanges = new CourseStateChanges();
+        try {
+            return process(items, courseStateChanges);
+        } finally {
+            courseService.writeBack(courseStateChanges);
+        }
+    }
+
+    private List<SynchronizationItem> process(final List<SynchronizationItem> items, final CourseStateChanges courseStateChanges) {
         final Map<Action, List<SynchronizationItem>> itemsByAction = groupItemsByAction(items);
         final List<SynchronizationItem> processedItems = Lists.newArrayList();
 
@@ -119,23 +166,67 @@ public class ProcessorService {
         });
         itemsByAction.getOrDefault(Action.REMOVE, Collections.emptyList()).forEach(item -> {
             try {
-                item = removeItem(item);
+                item = removeItem(item, courseStateChanges);
             } catch (Exception e) {
                 throw new ProcessException("Error processing item (REMOVING) " + item.toString(), e);
             }
             processedItems.add(item);
         });
-        itemsByAction.getOrDefault(Action.SYNCHRONIZE, Collections.emptyList()).forEach(item -> {
-            try {
-                item = synchronizeItem(item);
-            } catch (Exception e) {
-                throw new ProcessException("Error processing item (SYNCHRONIZING) " + item.toString(), e);
-            }
-            processedItems.add(item);
-        });
+        itemsByAction.getOrDefault(Action.UNCHANGED, Collections.emptyList()).forEach(item -> processedItems.add(leaveUnchangedItem(item)));
+        processedItems.addAll(synchronizeItems(itemsByAction.getOrDefault(Action.SYNCHRONIZE, Collections.emptyList()), courseStateChanges));
         return processedItems;
     }
 
+    /**
+     * Plan the actions of every course first, then send the actions of all courses that passed their
+     * threshold checks to Moodle together, and only then complete the courses.
+     */
+    private List<SynchronizationItem> synchronizeItems(final List<SynchronizationItem> items,
+                                                       final CourseStateChanges courseStateChanges) {
+        final List<SynchronizationItem> plannedItems;
+        if (parallelism > 1 && items.size() > 1) {
+            plannedItems = planItemsInParallel(items);
+        } else {
+            plannedItems = Lists.newArrayList();
+            items.forEach(item -> plannedItems.add(planItemOrFail(item)));
+        }
+
+        final UserSynchronizationActionAggregator aggregator = new UserSynchronizationActionAggregator();
+        plannedItems.stream().filter(item -> !completed(item)).forEach(aggregator::add);
+        try {
+            synchronizingProcessor.executeActions(aggregator);
+        } catch (Exception e) {
+            throw new ProcessException("Error executing user synchronization actions", e);
+        }
+
+        return plannedItems.stream()
+            .map(item -> completeItem(item, courseStateChanges))
+            .collect(toList());
+    }
+
+    /**
+     * Plan items with a bounded pool of workers. Every course is still planned in isolation
+     * (own actions, threshold checks and locks), and the results are returned in the same order as
+     * the serial path would return them.
+     */
+    private List<SynchronizationItem> planItemsInParallel(final List<SynchronizationItem> items) {
+        final int poolSize = Math.min(parallelism, items.size());
+        logger.info("Planning {} items with {} workers", items.size(), poolSize);
+
+        final List<Callable<SynchronizationItem>> tasks = items.stream()
+            .map(item -> (Callable<SynchronizationItem>) () -> planItemOrFail(item))
+            .collect(toList());
+        return ConcurrentTasks.invokeInOrder(tasks, parallelism, WORKER_THREAD_FACTORY);
+    }
+
+    private SynchronizationItem planItemOrFail(final SynchronizationItem item) {
+        try {
+            return planItem(item);
+        } catch (Exception e) {
+            throw new ProcessException("Error processing item (SYNCHRONIZING) " + item.toString(), e);
+        }
+    }
+
     private Map<Action, List<SynchronizationItem>> groupItemsByAction(final List<SynchronizationItem> items) {
         return items.stream().collect(groupingBy(this::resolveAction));
     }
@@ -148,6 +239,8 @@ public class ProcessorService {
             case COURSE_ENDED:
             case MOODLE_COURSE_NOT_FOUND:
                 return Action.REMOVE;
+            case UNCHANGED:
+                return Action.UNCHANGED;
             case LOCKED:
             default:
                 return Action.SKIP;
@@ -0,0 +1,75 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize.process;
+
+import fi.helsinki.moodi.integration.moodle.MoodleRole;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maps a fixed set of Moodle role ids to bit positions, so that a user's roles fit in a single long.
+ *
+ * <p>Roles outside the set all map to {@link #OTHER}, which is enough to tell that a user has
+ * some role Moodi does not manage.</p>
+ */
+public final class RoleSet {
+
+    public static final long NONE = 0L;
+    public static final long OTHER = Long.MIN_VALUE;
+
+    private final long[] roleIds;
+
+    public RoleSet(long... roleIds) {
+        if (roleIds.length >= Long.SIZE) {
+            throw new IllegalArgumentException("At most " + (Long.SIZE - 1) + " roles fit in a role set");
+        }
+        this.roleIds = roleIds.clone();
+    }
+
+    public long bitOf(long roleId) {
+        for (int i = 0; i < roleIds.length; i++) {
+            if (roleIds[i] == roleId) {
+                return 1L << i;
+            }
+        }
+        return OTHER;
+    }
+
+    public long bitsOf(List<MoodleRole> roles) {
+        long bits = NONE;
+        for (MoodleRole role : roles) {
+            bits |= bitOf(role.roleId);
+        }
+        return bits;
+    }
+
+    /**
+     * Role ids of the given bits. {@link #OTHER} has no role id and is left out.
+     */
+    public Set<Long> toRoleIds(long bits) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (int i = 0; i < roleIds.length; i++) {
+            if ((bits & (1L << i)) != 0) {
+                ids.add(roleIds[i]);
+            }
+        }
+        return ids;
+    }
+}
@@ -24,22 +24,27 @@ import fi.helsinki.moodi.integration.moodle.MoodleUser;
 import fi.helsinki.moodi.integration.moodle.MoodleUserEnrollments;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryCourseUnitRealisation;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryTeacher;
+import fi.helsinki.moodi.service.batch.BatchPolicy;
 import fi.helsinki.moodi.service.batch.BatchProcessor;
-import fi.helsinki.moodi.service.course.CourseService;
 import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
-import fi.helsinki.moodi.service.synchronize.enrich.EnricherService;
+import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentContext;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationActionAggregator.PlannedAction;
 import fi.helsinki.moodi.service.synclock.SyncLockService;
 import fi.helsinki.moodi.service.util.MapperService;
 import io.micrometer.core.instrument.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
@@ -50,13 +55,12 @@ import static com.google.common.collect.Lists.newArrayList;
 import static fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem.UserSynchronizationItemStatus.*;
 
 /**
- * Synchronization for one course, represented by synchronizationItem.
+ * Synchronization for one course, represented by synchronizationItem. The Moodle writes of a synchronization run
+ * can be planned course by course and then executed together for all courses.
  */
 @Component
 public class SynchronizingProcessor {
 
-    private static final int ACTION_BATCH_MAX_SIZE = 300;
-
     private static final String THRESHOLD_EXCEEDED_MESSAGE = "Action %s for %s items exceeds threshold";
     private static final String PREVENT_ACTION_ON_ALL_MESSAGE = "Action %s is not permitted for all items";
 
@@ -64,68 +68,90 @@ public class SynchronizingProcessor {
 
     private final MapperService mapperService;
     private final MoodleService moodleService;
-    private final CourseService courseService;
-    private final EnricherService enricherService;
     private final SynchronizationThreshold synchronizationThreshold;
     private final SyncLockService syncLockService;
     private final UserSynchronizationActionResolver synchronizationActionResolver;
-    private final BatchProcessor<UserSynchronizationAction> batchProcessor;
+    private final BatchProcessor<PlannedAction> batchProcessor;
+    private final int actionBatchSize;
+    private final int parallelism;
 
     @Autowired
     public SynchronizingProcessor(MapperService mapperService,
                                   MoodleService moodleService,
-                                  CourseService courseService,
-                                  EnricherService enricherService,
                                   SynchronizationThreshold synchronizationThreshold,
                                   SyncLockService syncLockService,
                                   UserSynchronizationActionResolver synchronizationActionResolver,
-                                  BatchProcessor batchProcessor) {
+                                  BatchProcessor batchProcessor,
+                                  @Value("${synchronize.processing.actionBatchSize:300}") int actionBatchSize,
+                                  @Value("${synchronize.processing.parallelism:1}") int parallelism) {
         this.mapperService = mapperService;
         this.moodleService = moodleService;
-        this.courseService = courseService;
-        this.enricherService = enricherService;
         this.synchronizationThreshold = synchronizationThreshold;
         this.syncLockService = syncLockService;
         this.synchronizationActionResolver = synchronizationActionResolver;
         this.batchProcessor = batchProcessor;
+        this.actionBatchSize = actionBatchSize;
+        this.parallelism = parallelism;
     }
 
+    /**
+     * Synchronize one course on its own, sending only its actions to Moodle.
+     */
     public SynchronizationItem doSynchronize(final SynchronizationItem item) {
-
-        final Map<Long, MoodleUserEnrollments> moodleEnrollmentsById = groupMoodleEnrollmentsByUserId(item);
-
-        final List<UserSynchronizationItem> processedItems = synchronizeUsers(item, moodleEnrollmentsById);
-
-        completeCourseEnrollments(item);
-        item.setUserSynchronizationItems(processedItems);
-        item.completeProcessingPhase();
-        return item;
+        final UserSynchronizationActionAggregator aggregator = new UserSynchronizationActionAggregator();
+        planSynchronization(item);
+        aggregator.add(item);
+        executeActions(aggregator);
+        return completeSynchronization(item);
     }
 
-    private void completeCourseEnrollments(final SynchronizationItem item) {
-        courseService.completeCourseImport(item.getCourse().realisationId, true);
-    }
+    /**
+     * Resolve the user synchronization actions of the course and check them against the thresholds.
+     * Nothing is sent to Moodle, the planned actions are left on the user synchronization items of the course.
+     *
+     * @throws ProcessingException if the course gets locked by the thresholds
+     */
+    public SynchronizationItem planSynchronization(final SynchronizationItem item) {
 
-    private List<UserSynchronizationItem> synchronizeUsers(
-        SynchronizationItem parentItem,
-        Map<Long, MoodleUserEnrollments> moodleEnrollmentsByUserId) {
+        final Map<Long, MoodleUserEnrollments> moodleEnrollmentsById = groupMoodleEnrollmentsByUserId(item);
 
-        List<UserSynchronizationItem> userSynchronizationItems = createUserSynchronizationItems(parentItem, moodleEnrollmentsByUserId);
+        final List<UserSynchronizationItem> userSynchronizationItems = createUserSynchronizationItems(item, moodleEnrollmentsById);
 
         Map<UserSynchronizationActionType, List<UserSynchronizationAction>> userSynchronizationActionMap = userSynchronizationItems.stream()
-            .filter(item -> !item.isCompleted())
+            .filter(userItem -> !userItem.isCompleted())
             .map(synchronizationActionResolver::enrichWithActions)
-            .flatMap(item -> item.getActions().stream())
+            .flatMap(userItem -> userItem.getActions().stream())
             .collect(Collectors.groupingBy(UserSynchronizationAction::getActionType));
-        checkThresholdLimits(userSynchronizationActionMap, parentItem);
+        checkThresholdLimits(userSynchronizationActionMap, item);
+
+        item.setUserSynchronizationItems(userSynchronizationItems);
+        return item;
+    }
 
+    /**
+     * Send the aggregated actions to Moodle, action type by action type, in batches that may mix courses.
+     * The batches of one action type are sent with up to parallelism concurrent calls, the action types one
+     * after another so that enrollments exist before roles are changed. Every action gets a success or error status.
+     */
+    public void executeActions(final UserSynchronizationActionAggregator aggregator) {
+        final BatchPolicy policy = BatchPolicy.sequential(actionBatchSize).withParallelism(parallelism);
         for (UserSynchronizationActionType actionType : UserSynchronizationActionType.values()) {
-            batchProcessActions(parentItem, actionType, userSynchronizationActionMap.getOrDefault(actionType, newArrayList()));
+            batchProcessor.process(
+                aggregator.getActions(actionType),
+                plannedActions -> processActions(actionType, plannedActions),
+                policy);
         }
+    }
 
-        return userSynchronizationItems.stream()
+    /**
+     * Complete the course once its planned actions have been executed.
+     */
+    public SynchronizationItem completeSynchronization(final SynchronizationItem item) {
+        item.setUserSynchronizationItems(item.getUserSynchronizationItems().stream()
             .map(this::completeItem)
-            .collect(Collectors.toList());
+            .collect(Collectors.toList()));
+        item.completeProcessingPhase();
+        return item;
     }
 
     private UserSynchronizationItem completeItem(UserSynchronizationItem item) {
@@ -137,50 +163,47 @@ public class SynchronizingProcessor {
         }
     }
 
-    private void batchProcessActions(SynchronizationItem parentItem, UserSynchronizationActionType actionType,
-                                     List<UserSynchronizationAction> actions) {
-        batchProcessor
-            .process(
-                actions,
-                itemsToProcess -> processActions(parentItem, actionType, itemsToProcess),
-                ACTION_BATCH_MAX_SIZE);
+    private List<PlannedAction> processActions(UserSynchronizationActionType actionType, List<PlannedAction> plannedActions) {
+        try {
+            sendActions(actionType, plannedActions);
+            plannedActions.forEach(plannedAction -> plannedAction.getAction().withSuccessStatus());
+        } catch (Exception e) {
+            final Map<Long, List<PlannedAction>> actionsByCourse = plannedActions.stream()
+                .collect(Collectors.groupingBy(PlannedAction::getMoodleCourseId, LinkedHashMap::new, Collectors.toList()));
+            if (actionsByCourse.size() > 1) {
+                // Moodle rejects the whole call, so retry course by course to keep the failure within the failing course.
+                logger.warn(String.format("Error when executing action %s for %s courses, retrying per course", actionType,
+                    actionsByCourse.size()), e);
+                actionsByCourse.values().forEach(courseActions -> processActions(actionType, courseActions));
+            } else {
+                logger.error(String.format("Error when executing action %s", e), e);
+                plannedActions.forEach(plannedAction -> plannedAction.getAction().withErrorStatus());
+            }
+        }
+        return plannedActions;
     }
 
-    private List<UserSynchronizationAction> processActions(SynchronizationItem parentItem,
-                                                         UserSynchronizationActionType actionType,
-                                                         List<UserSynchronizationAction> actions) {
-
-        List<MoodleEnrollment> moodleEnrollments = actions.stream()
-            .flatMap(action -> actionsToMoodleEnrollents(parentItem, action))
+    private void sendActions(UserSynchronizationActionType actionType, List<PlannedAction> plannedActions) {
+        List<MoodleEnrollment> moodleEnrollments = plannedActions.stream()
+            .flatMap(this::actionToMoodleEnrollments)
             .collect(Collectors.toList());
 
-        try {
-            switch (actionType) {
-                case ADD_ENROLLMENT:
-                case REACTIVATE_ENROLLMENT: // Adding the enrollment again in Moodle sets the enrollment suspend flag to 0
-                    moodleService.addEnrollments(moodleEnrollments);
-                    break;
-                case SUSPEND_ENROLLMENT:
-                    moodleService.suspendEnrollments(moodleEnrollments);
-                    break;
-                case ADD_ROLES:
-                    moodleService.addRoles(moodleEnrollments);
-                    break;
-                case REMOVE_ROLES:
-                    moodleService.removeRoles(moodleEnrollments);
-                    break;
-                default:
-                    throw new IllegalArgumentException("No service method mapped for action: " + actionType);
-            }
-            return actions.stream()
-                .map(UserSynchronizationAction::withSuccessStatus)
-                .collect(Collectors.toList());
-
-        } catch (Exception e) {
-            logger.error(String.format("Error when executing action %s", e), e);
-            return actions.stream()
-                .map(UserSynchronizationAction::withErrorStatus)
-                .collect(Collectors.toList());
+        switch (actionType) {
+            case ADD_ENROLLMENT:
+            case REACTIVATE_ENROLLMENT: // Adding the enrollment again in Moodle sets the enrollment suspend flag to 0
+                moodleService.addEnrollments(moodleEnrollments);
+                break;
+            case SUSPEND_ENROLLMENT:
+                moodleService.suspendEnrollments(moodleEnrollments);
+                break;
+            case ADD_ROLES:
+                moodleService.addRoles(moodleEnrollments);
+                break;
+            case REMOVE_ROLES:
+                moodleService.removeRoles(moodleEnrollments);
+                break;
+            default:
+                throw new IllegalArgumentException("No service method mapped for action: " + actionType);
         }
     }
 
@@ -228,11 +251,12 @@ public class SynchronizingProcessor {
         return enrollments.stream().collect(Collectors.toMap(e -> e.id, Function.identity(), (a, b) -> b));
     }
 
-    private Stream<MoodleEnrollment> actionsToMoodleEnrollents(SynchronizationItem parentItem, UserSynchronizationAction action) {
+    private Stream<MoodleEnrollment> actionToMoodleEnrollments(PlannedAction plannedAction) {
+        final UserSynchronizationAction action = plannedAction.getAction();
         return action
             .getRoles()
             .stream()
-            .map(role -> new MoodleEnrollment(role, action.getMoodleUserId(), parentItem.getMoodleCourse().id));
+            .map(role -> new MoodleEnrollment(role, action.getMoodleUserId(), plannedAction.getMoodleCourseId()));
     }
 
     private List<UserSynchronizationItem> createUserSynchronizationItems(final SynchronizationItem item,
@@ -254,10 +278,13 @@ public class SynchronizingProcessor {
             personItems.add(new UserSynchronizationItem(creator));
         }
 
+        final EnrichmentContext context = item.getEnrichmentContext();
+        final Map<String, MoodleUser> moodleUsersByUsername = fetchMoodleUsersNotPrefetched(personItems, context);
+
         Map<Boolean, List<UserSynchronizationItem>> userSynchronizationItemsByCompletedStatus =
             personItems.stream()
                 .map(i -> i.withMoodleCourseId(item.getCourse().moodleId))
-                .map(this::enrichWithMoodleUser)
+                .map(i -> enrichWithMoodleUser(i, moodleUsersByUsername, context))
                 .collect(Collectors.groupingBy(UserSynchronizationItem::isCompleted));
 
         List<UserSynchronizationItem> completedItems = userSynchronizationItemsByCompletedStatus.getOrDefault(true, newArrayList());
@@ -292,7 +319,21 @@ public class SynchronizingProcessor {
                 .getOrDefault(userSynchronizationItem.getMoodleUserId(), null));
     }
 
-    private UserSynchronizationItem enrichWithMoodleUser(UserSynchronizationItem item) {
+    /**
+     * Users already enrolled in the course are known from the prefetched Moodle enrollments.
+     * The rest are looked up from Moodle with one bulk call instead of one call per user.
+     */
+    private Map<String, MoodleUser> fetchMoodleUsersNotPrefetched(final List<UserSynchronizationItem> items,
+                                                                  final EnrichmentContext context) {
+        final List<String> usernamesToFetch = items.stream()
+            .map(this::getUsernames)
+            .filter(usernames -> !usernames.isEmpty() && !context.getMoodleUser(usernames).isPresent())
+            .flatMap(List::stream)
+            .collect(Collectors.toList());
+        return usernamesToFetch.isEmpty() ? Collections.emptyMap() : moodleService.getUsersByUsername(usernamesToFetch);
+    }
+
+    private List<String> getUsernames(UserSynchronizationItem item) {
         List<String> usernames = new ArrayList<>();
         if (item.getStudent() != null && StringUtils.isNotEmpty(item.getStudent().userName)) {
             usernames.add(item.getStudent().userName);
@@ -300,22 +341,29 @@ public class SynchronizingProcessor {
         if (item.getTeacher() != null && StringUtils.isNotEmpty(item.getTeacher().userName)) {
             usernames.add(item.getTeacher().userName);
         }
+        return usernames;
+    }
+
+    private UserSynchronizationItem enrichWithMoodleUser(UserSynchronizationItem item, Map<String, MoodleUser> moodleUsersByUsername,
+                                                         EnrichmentContext context) {
+        List<String> usernames = getUsernames(item);
 
         if (usernames.isEmpty()) {
             // Some users do not have a username, and thus cannot be synced to Moodle.
             // This is not considered an error.
             return item.withStatus(SUCCESS);
         }
-        return getMoodleUser(usernames).map(item::withMoodleUser).orElseGet(() ->  {
+        return getMoodleUser(usernames, moodleUsersByUsername, context).map(item::withMoodleUser).orElseGet(() ->  {
             logger.warn("User not found from Moodle with usernames " + usernames);
             return item.withStatus(MOODLE_USER_NOT_FOUND);
         });
     }
 
-    private Optional<MoodleUser> getMoodleUser(final List<String> usernameList) {
-        Optional<MoodleUser> moodleUser = enricherService.getPrefetchedMoodleUser(usernameList);
+    private Optional<MoodleUser> getMoodleUser(final List<String> usernameList, final Map<String, MoodleUser> moodleUsersByUsername,
+                                               final EnrichmentContext context) {
+        Optional<MoodleUser> moodleUser = context.getMoodleUser(usernameList);
         if (!moodleUser.isPresent()) {
-            moodleUser = moodleService.getUser(usernameList);
+            moodleUser = usernameList.stream().map(moodleUsersByUsername::get).filter(Objects::nonNull).findFirst();
         }
         return moodleUser;
     }
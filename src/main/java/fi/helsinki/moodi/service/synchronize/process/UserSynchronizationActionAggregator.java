@@ -0,0 +1,83 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize.process;
+
+import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Planned user synchronization actions of all courses in a synchronization run, grouped by action type
+ * so that the actions of many courses can be sent to Moodle in the same calls.
+ *
+ * <p>Not thread safe. Courses are added one at a time, in the order their actions should be sent.</p>
+ */
+public class UserSynchronizationActionAggregator {
+
+    private final Map<UserSynchronizationActionType, List<PlannedAction>> actionsByType = new EnumMap<>(UserSynchronizationActionType.class);
+
+    /**
+     * Add the actions planned for the users of the course.
+     */
+    public void add(final SynchronizationItem item) {
+        for (UserSynchronizationItem userItem : item.getUserSynchronizationItems()) {
+            for (UserSynchronizationAction action : userItem.getActions()) {
+                actionsByType.computeIfAbsent(action.getActionType(), type -> newArrayList()).add(new PlannedAction(item, action));
+            }
+        }
+    }
+
+    public List<PlannedAction> getActions(final UserSynchronizationActionType actionType) {
+        return actionsByType.getOrDefault(actionType, Collections.emptyList());
+    }
+
+    public boolean isEmpty() {
+        return actionsByType.isEmpty();
+    }
+
+    /**
+     * A user synchronization action together with the course it was planned for.
+     */
+    public static final class PlannedAction {
+
+        private final SynchronizationItem item;
+        private final UserSynchronizationAction action;
+
+        public PlannedAction(SynchronizationItem item, UserSynchronizationAction action) {
+            this.item = item;
+            this.action = action;
+        }
+
+        public SynchronizationItem getItem() {
+            return item;
+        }
+
+        public UserSynchronizationAction getAction() {
+            return action;
+        }
+
+        public long getMoodleCourseId() {
+            return item.getMoodleCourse().id;
+        }
+    }
+}
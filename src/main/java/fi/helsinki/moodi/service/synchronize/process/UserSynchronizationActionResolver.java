@@ -17,77 +17,66 @@
 
 package fi.helsinki.moodi.service.synchronize.process;
 
-import com.google.common.collect.Sets;
+import fi.helsinki.moodi.integration.moodle.MoodleRole;
 import fi.helsinki.moodi.service.util.MapperService;
-import java.util.Collections;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static fi.helsinki.moodi.service.synchronize.process.RoleSet.NONE;
 
 @Component
 public class UserSynchronizationActionResolver {
 
-    private final MapperService mapperService;
+    // Roles are handled as bits of a RoleSet, set operations below are plain bit operations.
+    private final RoleSet roleSet;
+    private final long studentRole;
+    private final long teacherRole;
+    private final long moodiRole;
 
     @Autowired
     public UserSynchronizationActionResolver(MapperService mapperService) {
-        this.mapperService = mapperService;
+        this.roleSet = new RoleSet(mapperService.getStudentRoleId(), mapperService.getTeacherRoleId(), mapperService.getMoodiRoleId());
+        this.studentRole = roleSet.bitOf(mapperService.getStudentRoleId());
+        this.teacherRole = roleSet.bitOf(mapperService.getTeacherRoleId());
+        this.moodiRole = roleSet.bitOf(mapperService.getMoodiRoleId());
     }
 
-    private Set<Long> getCurrentStudyRegistryRoles(UserSynchronizationItem item) {
-        Set<Long> currentRoles = Sets.newHashSet();
+    private long getCurrentStudyRegistryRoles(UserSynchronizationItem item) {
+        long currentRoles = NONE;
 
         if (item.getStudent() != null && item.getStudent().isEnrolled) {
-            currentRoles.add(mapperService.getStudentRoleId());
+            currentRoles |= studentRole;
         }
 
         if (item.getTeacher() != null) {
-            currentRoles.add(mapperService.getTeacherRoleId());
+            currentRoles |= teacherRole;
         }
 
         return currentRoles;
     }
 
-    private Set<Long> addDefaultRoleIfNotEmpty(Set<Long> roles) {
-        if (!roles.isEmpty()) {
-            roles.add(mapperService.getMoodiRoleId());
-        }
-        return roles;
+    private long addDefaultRoleIfNotEmpty(long roles) {
+        return roles != NONE ? roles | moodiRole : roles;
     }
 
-    private boolean roleCanBeRemoved(Long role) {
-        // Teacher role and Sync role (MoodiRole) cannot be removed
-        return role == mapperService.getStudentRoleId();
+    private long getCurrentMoodleRoles(UserSynchronizationItem item) {
+        List<MoodleRole> roles = item.getMoodleUserEnrollments().roles;
+        return roles != null ? roleSet.bitsOf(roles) : NONE;
     }
 
-    private Set<Long> getCurrentMoodleRoles(UserSynchronizationItem item) {
-        if (item.getMoodleUserEnrollments() != null) {
-            return item.getMoodleUserEnrollments().roles.stream()
-                    .map(role -> role.roleId)
-                    .collect(Collectors.toSet());
-        }
-
-        return Collections.emptySet();
-    }
-
-    private void addRoleChangeAndSuspendActions(Long moodleUserId, Set<Long> currentRegistryRoles, Set<Long> currentRolesInMoodle,
+    private void addRoleChangeAndSuspendActions(Long moodleUserId, long currentRegistryRoles, long currentRolesInMoodle,
                                                    boolean userSeesCourseInMoodle, List<UserSynchronizationAction> actions) {
-        Set<Long> rolesToAdd = difference(currentRegistryRoles, currentRolesInMoodle);
+        long rolesToAdd = currentRegistryRoles & ~currentRolesInMoodle;
         // Check that the user has the synced (moodi) role indicating he is controlled by Moodi instead of
-        // having been manually added to Moodle.
-        Set<Long> rolesToRemove = currentRolesInMoodle.contains(mapperService.getMoodiRoleId()) ?
-            difference(currentRolesInMoodle, currentRegistryRoles).stream()
-            .filter(this::roleCanBeRemoved)
-            .collect(Collectors.toSet()) :
-            new HashSet<>();
-
-        if (!rolesToAdd.isEmpty()) {
+        // having been manually added to Moodle. Teacher role and Sync role (MoodiRole) cannot be removed.
+        long rolesToRemove = has(currentRolesInMoodle, moodiRole) ?
+            currentRolesInMoodle & ~currentRegistryRoles & studentRole :
+            NONE;
+
+        if (rolesToAdd != NONE) {
             addAction(moodleUserId, rolesToAdd, UserSynchronizationActionType.ADD_ROLES, actions);
         }
 
@@ -96,9 +85,9 @@ public class UserSynchronizationActionResolver {
         //  user does not have teacher role in Moodle AND
         //  student role is removed from student registry OR (user only has the sync role in Moodle AND no student role in student registry)
         boolean suspendStudent =
-            (rolesToRemove.contains(mapperService.getStudentRoleId()) ||
-                (hasOnlySyncRole(currentRolesInMoodle) && !currentRegistryRoles.contains(mapperService.getStudentRoleId()))) &&
-                !currentRolesInMoodle.contains(mapperService.getTeacherRoleId()) &&
+            (has(rolesToRemove, studentRole) ||
+                (hasOnlySyncRole(currentRolesInMoodle) && !has(currentRegistryRoles, studentRole))) &&
+                !has(currentRolesInMoodle, teacherRole) &&
                 // Prevents user getting continuously suspended, as a suspended user does not see the course.
                 // User sees course if field "enrolledcourses" in the response to core_enrol_get_enrolled_users contains the id
                 // of the course.
@@ -106,35 +95,35 @@ public class UserSynchronizationActionResolver {
                 userSeesCourseInMoodle;
 
         if (suspendStudent) {
-            addAction(moodleUserId, Sets.newHashSet(mapperService.getMoodiRoleId()), UserSynchronizationActionType.SUSPEND_ENROLLMENT, actions);
+            addAction(moodleUserId, moodiRole, UserSynchronizationActionType.SUSPEND_ENROLLMENT, actions);
         }
 
         // We identify a suspended student by him having an enrollment in Moodle with just the sync role.
-        boolean reactivateStudent = rolesToAdd.contains(mapperService.getStudentRoleId()) && hasOnlySyncRole(currentRolesInMoodle);
+        boolean reactivateStudent = has(rolesToAdd, studentRole) && hasOnlySyncRole(currentRolesInMoodle);
 
         if (reactivateStudent) {
-            addAction(moodleUserId, Sets.newHashSet(mapperService.getStudentRoleId()), UserSynchronizationActionType.REACTIVATE_ENROLLMENT, actions);
+            addAction(moodleUserId, studentRole, UserSynchronizationActionType.REACTIVATE_ENROLLMENT, actions);
         }
 
-        if (!rolesToRemove.isEmpty()) {
+        if (rolesToRemove != NONE) {
             addAction(moodleUserId, rolesToRemove, UserSynchronizationActionType.REMOVE_ROLES, actions);
         }
     }
 
-    private boolean hasOnlySyncRole(Set<Long> roles) {
-        return roles.contains(mapperService.getMoodiRoleId()) && roles.size() == 1;
+    private boolean hasOnlySyncRole(long roles) {
+        return roles == moodiRole;
     }
 
-    private Set<Long> difference(Set<Long> list1, Set<Long> list2) {
-        return list1.stream().filter(item -> !list2.contains(item)).collect(Collectors.toSet());
+    private static boolean has(long roles, long role) {
+        return (roles & role) != 0;
     }
 
-    private void addAction(Long moodleUserId, Set<Long> roles, UserSynchronizationActionType type, List<UserSynchronizationAction> actions) {
-        actions.add(new UserSynchronizationAction(type, roles, moodleUserId));
+    private void addAction(Long moodleUserId, long roles, UserSynchronizationActionType type, List<UserSynchronizationAction> actions) {
+        actions.add(new UserSynchronizationAction(type, roleSet.toRoleIds(roles), moodleUserId));
     }
 
     public UserSynchronizationItem enrichWithActions(final UserSynchronizationItem item) {
-        Set<Long> currentStudyRegistryRolesWithDefaultRole = addDefaultRoleIfNotEmpty(getCurrentStudyRegistryRoles(item));
+        long currentStudyRegistryRolesWithDefaultRole = addDefaultRoleIfNotEmpty(getCurrentStudyRegistryRoles(item));
         Long moodleUserId = item.getMoodleUserId();
         List<UserSynchronizationAction> actions = newArrayList();
         if (item.getMoodleUserEnrollments() != null) {
@@ -145,7 +134,7 @@ public class UserSynchronizationActionResolver {
                 item.userSeesCourseInMoodle(),
                 actions
             );
-        } else if (!currentStudyRegistryRolesWithDefaultRole.isEmpty()) {
+        } else if (currentStudyRegistryRolesWithDefaultRole != NONE) {
             addAction(moodleUserId, currentStudyRegistryRolesWithDefaultRole, UserSynchronizationActionType.ADD_ENROLLMENT, actions);
         }
         return item.withActions(actions);
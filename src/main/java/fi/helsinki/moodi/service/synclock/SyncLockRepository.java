@@ -18,6 +18,7 @@
 package fi.helsinki.moodi.service.synclock;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
 import java.util.List;
 import java.util.Optional;
@@ -26,5 +27,9 @@ public interface SyncLockRepository extends JpaRepository<SyncLock, Long> {
 
     Optional<SyncLock> findByCourseIdAndActiveTrue(Long courseId);
 
-    List<SyncLock> findAllByActiveTrue();
+    @Query("select l from SyncLock l join fetch l.course where l.active = true")
+    List<SyncLock> findAllActiveWithCourse();
+
+    @Query("select l.course.id from SyncLock l where l.active = true")
+    List<Long> findLockedCourseIds();
 }
@@ -24,7 +24,9 @@ import org.springframework.stereotype.Service;
 
 import javax.transaction.Transactional;
 import java.time.LocalDateTime;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
@@ -44,6 +46,13 @@ public class SyncLockService {
         return syncLockRepository.findByCourseIdAndActiveTrue(course.id).isPresent();
     }
 
+    /**
+     * IDs of all currently locked courses, for checking many courses without a query per course.
+     */
+    public Set<Long> getLockedCourseIds() {
+        return new HashSet<>(syncLockRepository.findLockedCourseIds());
+    }
+
     public void setLock(Course course, String reason) {
         LocalDateTime localDateTime = timeService.getCurrentDateTime();
 
@@ -56,7 +65,8 @@ public class SyncLockService {
     }
 
     public List<Course> getAndUnlockLockedCourses() {
-        List<SyncLock> locks = syncLockRepository.findAllByActiveTrue();
+        // Courses are fetched in the same query, they are all needed below.
+        List<SyncLock> locks = syncLockRepository.findAllActiveWithCourse();
 
         locks.forEach(l -> {
             l.active = false;
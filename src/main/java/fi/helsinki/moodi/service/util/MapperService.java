@@ -17,8 +17,8 @@
 
 package fi.helsinki.moodi.service.util;
 
-import fi.helsinki.moodi.integration.sisu.SisuClient;
 import fi.helsinki.moodi.integration.sisu.SisuOrganisation;
+import fi.helsinki.moodi.integration.sisu.SisuOrganisationCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.core.env.Environment;
@@ -35,20 +35,24 @@ public class MapperService {
     private static final String ROLE_MOODI = "moodi";
 
     private final Environment environment;
-    private final SisuClient sisuClient;
+    private final SisuOrganisationCache sisuOrganisationCache;
 
     // These get populated by @ConfigurationProperties
     private String defaultCategory;
     private Map<String, String> moodleCategoriesByOrgId;
 
+    // Rebuilt when the organisations or the configured categories change.
+    private volatile OrganisationCategoryIndex categoryIndex;
+
     @Autowired
-    public MapperService(final Environment environment, SisuClient sisuClient) {
+    public MapperService(final Environment environment, SisuOrganisationCache sisuOrganisationCache) {
         this.environment = environment;
-        this.sisuClient = sisuClient;
+        this.sisuOrganisationCache = sisuOrganisationCache;
     }
 
     public void setDefaultCategory(String defaultCategory) {
         this.defaultCategory = defaultCategory;
+        this.categoryIndex = null;
     }
 
     public String getDefaultCategory() {
@@ -61,6 +65,7 @@ public class MapperService {
 
     public void setCategoriesByOrgId(Map<String, String> moodleCategoriesByOrgId) {
         this.moodleCategoriesByOrgId = moodleCategoriesByOrgId;
+        this.categoryIndex = null;
     }
 
     public long getStudentRoleId() {
@@ -85,11 +90,23 @@ public class MapperService {
             return defaultCategory;
         }
         String cat = moodleCategoriesByOrgId.get(orgId);
-        if (cat != null) {
-            return cat;
-        } else {
-            SisuOrganisation organisation = sisuClient.getAllOrganisationsById().get(orgId);
-            return organisation != null ? getMoodleCategoryByOrganisationId(organisation.parentId) : defaultCategory;
+        return cat != null ? cat : getCategoryIndex().getCategory(orgId);
+    }
+
+    /**
+     * The resolved Moodle category of every Sisu organisation.
+     */
+    public Map<String, String> getResolvedCategoriesByOrgId() {
+        return getCategoryIndex().getCategoriesByOrgId();
+    }
+
+    private OrganisationCategoryIndex getCategoryIndex() {
+        final Map<String, SisuOrganisation> organisationsById = sisuOrganisationCache.getOrganisationsById();
+        OrganisationCategoryIndex index = categoryIndex;
+        if (index == null || !index.isBuiltFrom(organisationsById)) {
+            index = new OrganisationCategoryIndex(organisationsById, moodleCategoriesByOrgId, defaultCategory);
+            categoryIndex = index;
         }
+        return index;
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.util;
+
+import fi.helsinki.moodi.integration.sisu.SisuOrganisation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Effective Moodle category of every Sisu organisation, resolved in one pass over the organisation tree.
+ *
+ * <p>An organisation gets the configured category of the nearest organisation on its path to the root,
+ * itself included, or the default category if there is none. Organisations whose path runs into a cycle
+ * also get the default category.</p>
+ */
+public class OrganisationCategoryIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrganisationCategoryIndex.class);
+
+    private final Map<String, SisuOrganisation> organisationsById;
+    private final Map<String, String> categoriesByOrgId;
+    private final String defaultCategory;
+
+    public OrganisationCategoryIndex(Map<String, SisuOrganisation> organisationsById,
+                                     Map<String, String> configuredCategoriesByOrgId,
+                                     String defaultCategory) {
+        this.organisationsById = organisationsById;
+        this.defaultCategory = defaultCategory;
+        this.categoriesByOrgId = Collections.unmodifiableMap(resolve(organisationsById, configuredCategoriesByOrgId, defaultCategory));
+    }
+
+    public boolean isBuiltFrom(Map<String, SisuOrganisation> organisationsById) {
+        return this.organisationsById == organisationsById;
+    }
+
+    public String getCategory(String orgId) {
+        return categoriesByOrgId.getOrDefault(orgId, defaultCategory);
+    }
+
+    public Map<String, String> getCategoriesByOrgId() {
+        return categoriesByOrgId;
+    }
+
+    private static Map<String, String> resolve(Map<String, SisuOrganisation> organisationsById,
+                                               Map<String, String> configuredCategoriesByOrgId,
+                                               String defaultCategory) {
+        final Map<String, String> resolved = new HashMap<>();
+        for (String orgId : organisationsById.keySet()) {
+            if (resolved.containsKey(orgId)) {
+                continue;
+            }
+            // Walk up until a category is known, then assign it to every organisation on the way.
+            final List<String> path = new ArrayList<>();
+            final Set<String> onPath = new HashSet<>();
+            String currentId = orgId;
+            String category;
+            while (true) {
+                if (currentId == null) {
+                    category = defaultCategory;
+                    break;
+                }
+                category = configuredCategoriesByOrgId.get(currentId);
+                if (category == null) {
+                    category = resolved.get(currentId);
+                }
+                if (category != null) {
+                    break;
+                }
+                final SisuOrganisation organisation = organisationsById.get(currentId);
+                if (organisation == null) {
+                    category = defaultCategory;
+                    break;
+                }
+                if (!onPath.add(currentId)) {
+                    logger.warn("Organisation tree has a cycle: {} -> {}", path.subList(path.indexOf(currentId), path.size()), currentId);
+                    category = defaultCategory;
+                    break;
+                }
+                path.add(currentId);
+                currentId = organisation.parentId;
+            }
+            for (String id : path) {
+                resolved.put(id, category);
+            }
+            resolved.putIfAbsent(orgId, category);
+        }
+        return resolved;
+    }
+}
@@ -26,6 +26,8 @@ import fi.helsinki.moodi.service.dto.CourseDto;
 import fi.helsinki.moodi.service.importing.ImportCourseRequest;
 import fi.helsinki.moodi.service.importing.ImportCourseResponse;
 import fi.helsinki.moodi.service.importing.ImportingService;
+import fi.helsinki.moodi.service.synchronize.SynchronizationService;
+import fi.helsinki.moodi.service.synchronize.SynchronizeCourseResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -40,18 +42,21 @@ public class CourseController {
     private final CourseService courseService;
     private final MoodiHealthIndicator moodiHealthIndicator;
     private final GroupSynchronizationService groupSynchronizationService;
+    private final SynchronizationService synchronizationService;
 
     @Autowired
     public CourseController(
         ImportingService importingService,
         CourseService courseService,
         MoodiHealthIndicator moodiHealthIndicator,
-        GroupSynchronizationService groupSynchronizationService
+        GroupSynchronizationService groupSynchronizationService,
+        SynchronizationService synchronizationService
     ) {
         this.importingService = importingService;
         this.courseService = courseService;
         this.moodiHealthIndicator = moodiHealthIndicator;
         this.groupSynchronizationService = groupSynchronizationService;
+        this.synchronizationService = synchronizationService;
     }
 
     @PostMapping(value = "/api/v1/courses")
@@ -88,6 +93,12 @@ public class CourseController {
         return response(groupSynchronizationService.synchronizeGroups(realisationId));
     }
 
+    @PostMapping(value = "/api/v1/courses/{realisationId}/synchronize")
+    public ResponseEntity<SynchronizeCourseResponse> synchronizeCourse(
+        @PathVariable("realisationId") String realisationId) {
+        return response(synchronizationService.synchronizeCourse(realisationId));
+    }
+
     private <D, E> ResponseEntity<Result<D, E>> response(Result<D, E> result) {
         return new ResponseEntity<>(result, HttpStatus.OK);
     }
@@ -67,6 +67,12 @@ public class GlobalExceptionHandler extends ResponseEntityExceptionHandler {
         return new ResponseEntity<>(Result.error(e.getMessage(), STATUS_ERROR, e.getMessage()), HttpStatus.CONFLICT);
     }
 
+    @ExceptionHandler(value = SynchronizationInProgressException.class)
+    public ResponseEntity<Result<?, String>> handleSynchronizationInProgressException(SynchronizationInProgressException e) {
+        logger.info(e.getMessage());
+        return new ResponseEntity<>(Result.error(e.getMessage(), STATUS_ERROR, e.getMessage()), HttpStatus.CONFLICT);
+    }
+
     @ExceptionHandler(value = MoodiException.class)
     public ResponseEntity<Result<?, String>> handleMoodiException(MoodiException e) {
         logger.error("Caught an exception", e);
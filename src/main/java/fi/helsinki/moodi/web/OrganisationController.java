@@ -0,0 +1,47 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.web;
+
+import fi.helsinki.moodi.service.Result;
+import fi.helsinki.moodi.service.util.MapperService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+@RestController
+@RequestMapping(value = "/api/v1/organisations")
+public class OrganisationController {
+
+    private final MapperService mapperService;
+
+    @Autowired
+    public OrganisationController(MapperService mapperService) {
+        this.mapperService = mapperService;
+    }
+
+    @RequestMapping(value = "/categories", method = RequestMethod.GET)
+    public ResponseEntity<Result<Map<String, String>, Boolean>> getResolvedCategories() {
+        return new ResponseEntity<>(Result.success(new TreeMap<>(mapperService.getResolvedCategoriesByOrgId())), HttpStatus.OK);
+    }
+}
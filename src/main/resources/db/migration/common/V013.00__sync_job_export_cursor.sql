@@ -0,0 +1,5 @@
+ALTER TABLE synchronization_job_run
+    ADD cur_export_ordinal bigint;
+
+ALTER TABLE synchronization_job_run
+    ADD enrolment_export_ordinal bigint;
@@ -0,0 +1,12 @@
+-- course_enrollment_status was never used. It now holds a fingerprint of the Sisu enrollments of each course
+-- and the time the enrollments of the course were last verified against Moodle.
+delete from course_enrollment_status;
+
+alter table course_enrollment_status drop column course_realisation_id;
+alter table course_enrollment_status drop column student_enrollments;
+alter table course_enrollment_status drop column teacher_enrollments;
+
+alter table course_enrollment_status add column fingerprint varchar(64) not null;
+alter table course_enrollment_status add column verified timestamp not null;
+
+create unique index course_enrollment_status_course_id_index on course_enrollment_status(course_id);
@@ -22,6 +22,7 @@ import fi.helsinki.moodi.Application;
 import fi.helsinki.moodi.integration.moodle.MoodleClient;
 import fi.helsinki.moodi.integration.sisu.SisuClient;
 import fi.helsinki.moodi.test.TestConfig;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -37,6 +38,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockserver.model.HttpRequest.request;
@@ -64,6 +66,9 @@ public class HttpClientTest {
     @Autowired
     private MoodleClient moodleClient;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Test
     public void thatSisuClientDoesNotHang() {
         testTimeout(this::callSisu);
@@ -74,6 +79,27 @@ public class HttpClientTest {
         testTimeout(this::callMoodle);
     }
 
+    @Test
+    public void thatMoodleConnectionsAreReused() {
+        mockServerClient
+            .when(request().withPath(".*"))
+            .respond(response().withBody("[]"));
+        final long leasesBefore = countMoodleLeases();
+
+        callMoodle("1");
+        callMoodle("1");
+
+        assertEquals(2, countMoodleLeases() - leasesBefore);
+        assertEquals(1.0, meterRegistry.get("httpcomponents.httpclient.pool.total.connections")
+            .tag("httpclient", "moodle-read-only")
+            .tag("state", "available")
+            .gauge().value(), 0);
+    }
+
+    private long countMoodleLeases() {
+        return meterRegistry.get("httpcomponents.httpclient.pool.lease").tag("httpclient", "moodle-read-only").timer().count();
+    }
+
     private void testTimeout(Consumer<String> f) {
         takeLongToRespond(1);
 
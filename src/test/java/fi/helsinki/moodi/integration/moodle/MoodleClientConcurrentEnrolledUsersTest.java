@@ -0,0 +1,165 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.moodle;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
+import org.hamcrest.Matcher;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.test.web.client.ResponseCreator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+/**
+ * A batch is only read one course at a time after it has failed as a whole, and more than 50 failed courses
+ * in one batch abort the read, so the batches here are just above that.
+ */
+@TestPropertySource(properties = {
+    "MoodleClient.batchsize=51",
+    "MoodleClient.concurrency=2"})
+public class MoodleClientConcurrentEnrolledUsersTest extends AbstractMoodiIntegrationTest {
+
+    @Autowired
+    private MoodleClient moodleClient;
+
+    @Before
+    public void expectBatchesInAnyOrder() {
+        // Concurrent batches reach Moodle in whichever order their threads get there.
+        moodleReadOnlyMockServer = MockRestServiceServer.bindTo(moodleReadOnlyRestTemplate).ignoreExpectOrder(true).build();
+    }
+
+    @Test
+    public void thatEnrollmentsAreMergedInBatchOrder() {
+        // The first batch finishes last.
+        expectEnrolledUsersRequest(courseIds(1, 51), request -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ignored) {
+                ;
+            }
+            return withEnrollments(courseIds(1, 51)).createResponse(request);
+        });
+        expectEnrolledUsersRequest(courseIds(52, 102), withEnrollments(courseIds(52, 102)));
+
+        final Map<Long, List<MoodleUserEnrollments>> enrolmentsByCourseId = getEnrolledUsersForCourses(courseIds(1, 102));
+
+        assertEquals(courseIds(1, 102), new ArrayList<>(enrolmentsByCourseId.keySet()));
+        enrolmentsByCourseId.forEach((courseId, users) -> assertEquals(courseId, users.get(0).id));
+    }
+
+    @Test
+    public void thatFailedBatchIsReadOneCourseAtTime() {
+        expectEnrolledUsersRequest(courseIds(1, 51), withServerError());
+        for (long courseId : courseIds(1, 51)) {
+            final List<Long> course = Collections.singletonList(courseId);
+            expectEnrolledUsersRequest(course, courseId == 2 ? withServerError() : withEnrollments(course));
+        }
+        expectEnrolledUsersRequest(courseIds(52, 102), withEnrollments(courseIds(52, 102)));
+
+        final Map<Long, List<MoodleUserEnrollments>> enrolmentsByCourseId = getEnrolledUsersForCourses(courseIds(1, 102));
+
+        final List<Long> expectedCourseIds = courseIds(1, 102).stream().filter(courseId -> courseId != 2).collect(Collectors.toList());
+        assertEquals(expectedCourseIds, new ArrayList<>(enrolmentsByCourseId.keySet()));
+    }
+
+    @Test
+    public void thatTooManyFailedCoursesInBatchAbortTheRead() {
+        expectEnrolledUsersRequest(courseIds(1, 51), withServerError());
+        for (long courseId : courseIds(1, 51)) {
+            expectEnrolledUsersRequest(Collections.singletonList(courseId), withServerError());
+        }
+        expectEnrolledUsersRequest(courseIds(52, 102), withEnrollments(courseIds(52, 102)));
+
+        try {
+            getEnrolledUsersForCourses(courseIds(1, 102));
+            fail("Expected the failed batch to abort the read");
+        } catch (MoodleClientException e) {
+            assertTrue(e.getMessage().startsWith("Too many errors in one batch, abort: 51"));
+        }
+    }
+
+    private Map<Long, List<MoodleUserEnrollments>> getEnrolledUsersForCourses(final List<Long> courseIds) {
+        final Map<Long, List<MoodleUserEnrollments>> enrolmentsByCourseId = new LinkedHashMap<>();
+        moodleClient.getEnrolledUsersForCourses(enrolmentsByCourseId, courseIds);
+        return enrolmentsByCourseId;
+    }
+
+    private void expectEnrolledUsersRequest(final List<Long> courseIds, final ResponseCreator response) {
+        moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
+            .andExpect(method(HttpMethod.POST))
+            .andExpect(content().string(enrolledUsersRequestFor(courseIds)))
+            .andRespond(response);
+    }
+
+    /**
+     * Matches the request of exactly these courses, in this order.
+     */
+    private Matcher<String> enrolledUsersRequestFor(final List<Long> courseIds) {
+        final List<Matcher<? super String>> matchers = new ArrayList<>();
+        matchers.add(containsString("wsfunction=core_enrol_get_enrolled_users_with_capability"));
+        for (int i = 0; i < courseIds.size(); i++) {
+            matchers.add(containsString("coursecapabilities%5B" + i + "%5D%5Bcourseid%5D=" + courseIds.get(i) + "&"));
+        }
+        matchers.add(not(containsString("coursecapabilities%5B" + courseIds.size() + "%5D%5Bcourseid%5D")));
+        return allOf(matchers);
+    }
+
+    /**
+     * Every course has one enrolled user whose Moodle id is the id of the course.
+     */
+    private ResponseCreator withEnrollments(final List<Long> courseIds) {
+        final List<MoodleCourseWithEnrollments> courses = courseIds.stream()
+            .map(courseId -> new MoodleCourseWithEnrollments(courseId, Collections.singletonList(
+                getMoodleUserEnrollments(courseId.intValue(), "user" + courseId, courseId.intValue(), getStudentRoleId()))))
+            .collect(Collectors.toList());
+        try {
+            return withSuccess(new ObjectMapper().writeValueAsString(courses), MediaType.APPLICATION_JSON);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Long> courseIds(final long first, final long last) {
+        return LongStream.rangeClosed(first, last).boxed().collect(Collectors.toList());
+    }
+}
@@ -23,14 +23,18 @@ import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
 
 import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
+@TestPropertySource(properties = "MoodleClient.userBatchsize=3")
 public class MoodleClientGetUsersTest extends AbstractMoodiIntegrationTest {
 
     @Autowired
@@ -65,4 +69,41 @@ public class MoodleClientGetUsersTest extends AbstractMoodiIntegrationTest {
 
         assertEquals(Long.valueOf(2), user.id);
     }
+
+    @Test
+    public void moodleExceptionInResponseBodyIsThrown() {
+        moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
+                .andExpect(method(HttpMethod.POST))
+                .andRespond(withSuccess(MOODLE_ERROR_RESPONSE, MediaType.APPLICATION_JSON));
+
+        try {
+            moodleClient.getUser(Arrays.asList("integraatio"));
+            fail("Expected MoodleClientException");
+        } catch (MoodleClientException e) {
+            assertEquals("webservice_access_exception", e.getMoodleException());
+            assertEquals("accessexception", e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void getUsersByUsernameInBatches() {
+        moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(content().string("wstoken=xxxx1234&wsfunction=core_user_get_users_by_field&moodlewsrestformat=json" +
+                    "&field=username&values%5B0%5D=first&values%5B1%5D=Second&values%5B2%5D=missing"))
+                .andRespond(withSuccess("[{\"id\": 1, \"username\": \"first\"}, {\"id\": 2, \"username\": \"second\"}]",
+                    MediaType.APPLICATION_JSON));
+        moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(content().string("wstoken=xxxx1234&wsfunction=core_user_get_users_by_field&moodlewsrestformat=json" +
+                    "&field=username&values%5B0%5D=integraatio"))
+                .andRespond(withSuccess(Fixtures.asString("/moodle/get-users-one-username.json"), MediaType.APPLICATION_JSON));
+
+        Map<String, MoodleUser> users = moodleClient.getUsersByUsername(Arrays.asList("first", "Second", "missing", "integraatio"));
+
+        assertEquals(3, users.size());
+        assertEquals(Long.valueOf(1), users.get("first").id);
+        assertEquals(Long.valueOf(2), users.get("Second").id);
+        assertEquals(Long.valueOf(3), users.get("integraatio").id);
+    }
 }
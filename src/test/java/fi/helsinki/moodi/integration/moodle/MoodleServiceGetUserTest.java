@@ -18,12 +18,23 @@
 package fi.helsinki.moodi.integration.moodle;
 
 import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 public class MoodleServiceGetUserTest extends AbstractMoodiIntegrationTest {
 
@@ -33,6 +44,12 @@ public class MoodleServiceGetUserTest extends AbstractMoodiIntegrationTest {
     @Autowired
     private MoodleService moodleService;
 
+    @Autowired
+    private MoodleUserNotFoundCache moodleUserNotFoundCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Test
     public void noUsername() {
         final Optional<MoodleUser> userList = moodleService.getUser(null);
@@ -40,4 +57,32 @@ public class MoodleServiceGetUserTest extends AbstractMoodiIntegrationTest {
         assertEquals(userList.isPresent(), false);
     }
 
+    @Test
+    public void unknownUserIsLookedUpOnlyOnce() {
+        expectGetUserRequestToMoodleUserNotFound("unknown@helsinki.fi");
+        long hitsBefore = moodleUserNotFoundCache.getHitCount();
+
+        assertFalse(moodleService.getUser(Collections.singletonList("unknown@helsinki.fi")).isPresent());
+        assertFalse(moodleService.getUser(Collections.singletonList("unknown@helsinki.fi")).isPresent());
+        assertTrue(moodleService.getUsersByUsername(Collections.singletonList("unknown@helsinki.fi")).isEmpty());
+
+        assertEquals(hitsBefore + 2, moodleUserNotFoundCache.getHitCount());
+        assertEquals(hitsBefore + 2, meterRegistry.get("moodle.user.not.found.cache.gets").tag("result", "hit").functionCounter().count(), 0);
+    }
+
+    @Test
+    public void unknownUserIsForgottenWhenFound() {
+        expectGetUserRequestToMoodleUserNotFound("unknown@helsinki.fi");
+        moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
+            .andExpect(method(HttpMethod.POST))
+            .andExpect(content().string("wstoken=xxxx1234&wsfunction=core_user_get_users_by_field&moodlewsrestformat=json" +
+                "&field=username&values%5B0%5D=unknown%40helsinki.fi&values%5B1%5D=known%40helsinki.fi"))
+            .andRespond(withSuccess("[{\"id\": 5, \"username\": \"unknown@helsinki.fi\"}]", MediaType.APPLICATION_JSON));
+
+        assertFalse(moodleService.getUser(Collections.singletonList("unknown@helsinki.fi")).isPresent());
+        assertTrue(moodleUserNotFoundCache.isNotFound("unknown@helsinki.fi"));
+
+        assertTrue(moodleService.getUser(Arrays.asList("unknown@helsinki.fi", "known@helsinki.fi")).isPresent());
+        assertFalse(moodleUserNotFoundCache.isNotFound("unknown@helsinki.fi"));
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.integration.sisu;
+
+import fi.helsinki.moodi.exception.IntegrationConnectionException;
+import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@TestPropertySource(properties = {
+    "SisuGraphQLClient.batchsize=1",
+    "SisuGraphQLClient.concurrency=2"})
+public class SisuClientConcurrentBatchesTest extends AbstractMoodiIntegrationTest {
+
+    @Autowired
+    private SisuClient sisuClient;
+
+    @Test
+    public void thatResultsAreCombinedInBatchOrder() {
+        // The first batch finishes last.
+        mockSisuGraphQLServer.expectPersonsRequestWithDelay(singletonList("hy-hlo-4"), "/sisu/persons.json", 500);
+        mockSisuGraphQLServer.expectPersonsRequest(singletonList("hy-hlo-creator"), "/sisu/persons-hy-hlo-creator.json");
+
+        List<SisuPerson> persons = sisuClient.getPersons(Arrays.asList("hy-hlo-4", "hy-hlo-creator"));
+
+        assertEquals(Arrays.asList("hy-hlo-4", "hy-hlo-creator"), persons.stream().map(p -> p.id).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void thatErrorOfFirstFailedBatchIsThrownWithOthersSuppressed() {
+        mockSisuGraphQLServer.expectPersonsRequest(singletonList("hy-hlo-4"), "/sisu/persons.json");
+        mockSisuGraphQLServer.expectPersonsRequestWithDroppedConnection(singletonList("hy-hlo-broken-1"));
+        mockSisuGraphQLServer.expectPersonsRequestWithDroppedConnection(singletonList("hy-hlo-broken-2"));
+
+        try {
+            sisuClient.getPersons(Arrays.asList("hy-hlo-4", "hy-hlo-broken-1", "hy-hlo-broken-2"));
+            fail("Expected the failed batches to fail the query");
+        } catch (IntegrationConnectionException e) {
+            // Still a connection error, so that it is reported as such.
+            assertEquals(1, e.getSuppressed().length);
+            assertTrue(e.getSuppressed()[0] instanceof IntegrationConnectionException);
+        }
+    }
+}
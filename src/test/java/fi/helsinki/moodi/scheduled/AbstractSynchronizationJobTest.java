@@ -172,8 +172,9 @@ public abstract class AbstractSynchronizationJobTest extends AbstractMoodiIntegr
     }
 
     protected void expectFindUsersRequestsToMoodle() {
-        expectFindStudentRequestToMoodle(MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA);
-        expectFindTeacherRequestToMoodle(MOODLE_USERNAME_HRAOPE, MOODLE_USER_HRAOPE);
+        expectGetUsersRequestToMoodle(
+            Arrays.asList(MOODLE_USERNAME_NIINA, MOODLE_USERNAME_HRAOPE),
+            ImmutableMap.of(MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA, MOODLE_USERNAME_HRAOPE, MOODLE_USER_HRAOPE));
     }
 
     protected void expectFindStudentRequestToMoodle(String username, long moodleId) {
@@ -17,6 +17,7 @@
 
 package fi.helsinki.moodi.scheduled;
 
+import com.google.common.collect.ImmutableMap;
 import fi.helsinki.moodi.integration.moodle.MoodleCourseWithEnrollments;
 import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
 import fi.helsinki.moodi.service.course.Course;
@@ -91,18 +92,25 @@ public class FullSyncJobSisuTest extends AbstractMoodiIntegrationTest {
         expectedEnrollmentsByCourse.add(new MoodleCourseWithEnrollments(MOODLE_COURSE_ID_2, Collections.emptyList()));
         prepareMoodleGetEnrolledUsersForCoursesMock(expectedEnrollmentsByCourse);
 
-        // Course one students and teacher are fetched from Moodle.
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_ONE, MOODLE_USER_TEACH_ONE);
-
-        // Course two student and teachers are fetched from Moodle.
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_NIINA2, MOODLE_USER_NIINA2);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_TWO, MOODLE_USER_TEACH_TWO);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_THREE, MOODLE_USER_TEACH_THREE);
-
-        // Course one students and teacher are enrolled, except for the not enrolled student.
+        // Course one students and teacher are fetched from Moodle in one request.
+        expectGetUsersRequestToMoodle(
+            Arrays.asList(MOODLE_USERNAME_NIINA, MOODLE_USERNAME_JUKKA, MOODLE_USERNAME_MAKE, MOODLE_USERNAME_ONE),
+            ImmutableMap.of(
+                MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA,
+                MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA,
+                MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE,
+                MOODLE_USERNAME_ONE, MOODLE_USER_TEACH_ONE));
+
+        // Course two student and teachers are fetched from Moodle in one request.
+        expectGetUsersRequestToMoodle(
+            Arrays.asList(MOODLE_USERNAME_NIINA2, MOODLE_USERNAME_TWO, MOODLE_USERNAME_THREE),
+            ImmutableMap.of(
+                MOODLE_USERNAME_NIINA2, MOODLE_USER_NIINA2,
+                MOODLE_USERNAME_TWO, MOODLE_USER_TEACH_TWO,
+                MOODLE_USERNAME_THREE, MOODLE_USER_TEACH_THREE));
+
+        // Course one students and teacher are enrolled, except for the not enrolled student,
+        // and course two student and teachers are enrolled in the same call.
         expectEnrollmentRequestToMoodle(
             new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_1),
             new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_1),
@@ -114,19 +122,8 @@ public class FullSyncJobSisuTest extends AbstractMoodiIntegrationTest {
             new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_ID_MAKE, MOODLE_COURSE_ID_1),
 
             new MoodleEnrollment(getTeacherRoleId(), MOODLE_USER_TEACH_ONE, MOODLE_COURSE_ID_1),
-            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_TEACH_ONE, MOODLE_COURSE_ID_1)
-        );
-
-        // The existing students gets suspended and student role removed, because no longer enrolled or found in Sisu.
-        expectSuspendRequestToMoodle(
-            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_NOT_IN_STUDY_REGISTRY, MOODLE_COURSE_ID_1),
-            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_NOT_ENROLLED_IN_SISU, MOODLE_COURSE_ID_1));
-        expectAssignRolesToMoodle(false,
-            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_NOT_IN_STUDY_REGISTRY, MOODLE_COURSE_ID_1),
-            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_NOT_ENROLLED_IN_SISU, MOODLE_COURSE_ID_1));
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_TEACH_ONE, MOODLE_COURSE_ID_1),
 
-        // Course two student and teachers are enrolled.
-        expectEnrollmentRequestToMoodle(
             new MoodleEnrollment(getTeacherRoleId(), MOODLE_USER_TEACH_TWO, MOODLE_COURSE_ID_2),
             new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_TEACH_TWO, MOODLE_COURSE_ID_2),
 
@@ -137,6 +134,14 @@ public class FullSyncJobSisuTest extends AbstractMoodiIntegrationTest {
             new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_NIINA2, MOODLE_COURSE_ID_2)
         );
 
+        // The existing students gets suspended and student role removed, because no longer enrolled or found in Sisu.
+        expectSuspendRequestToMoodle(
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_NOT_IN_STUDY_REGISTRY, MOODLE_COURSE_ID_1),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_NOT_ENROLLED_IN_SISU, MOODLE_COURSE_ID_1));
+        expectAssignRolesToMoodle(false,
+            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_NOT_IN_STUDY_REGISTRY, MOODLE_COURSE_ID_1),
+            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_NOT_ENROLLED_IN_SISU, MOODLE_COURSE_ID_1));
+
         job.execute();
     }
 
@@ -17,18 +17,22 @@
 
 package fi.helsinki.moodi.scheduled;
 
+import com.google.common.collect.ImmutableMap;
 import fi.helsinki.moodi.exception.SynchronizationInProgressException;
 import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
 import fi.helsinki.moodi.service.course.Course;
+import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
 import fi.helsinki.moodi.service.synchronize.SynchronizationSummary;
 import fi.helsinki.moodi.service.synchronize.SynchronizationType;
 import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentStatus;
+import fi.helsinki.moodi.service.synchronize.process.ProcessingStatus;
 import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem;
 import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem.UserSynchronizationItemStatus;
 import fi.helsinki.moodi.test.util.DateUtil;
 import org.junit.Test;
 import org.springframework.test.context.TestPropertySource;
 
+import java.util.Arrays;
 import java.util.Collections;
 
 import static fi.helsinki.moodi.service.course.Course.ImportStatus;
@@ -60,6 +64,18 @@ public class FullSynchronizationJobTest extends AbstractSynchronizationJobTest {
         thatCourseIsSynchronizedWithNoExistingEnrollments(getFutureDateString());
     }
 
+    @Test
+    public void thatUnchangedCourseIsNotFetchedFromMoodleAgain() {
+        thatCourseIsSynchronizedWithNoExistingEnrollments(getFutureDateString());
+
+        // Sisu keeps returning the same course, so the second run must not call Moodle at all.
+        SynchronizationSummary summary = synchronizationService.synchronize(SynchronizationType.FULL);
+
+        SynchronizationItem item = summary.getItems().get(0);
+        assertEquals(EnrichmentStatus.UNCHANGED, item.getEnrichmentStatus());
+        assertEquals(ProcessingStatus.SUCCESS, item.getProcessingStatus());
+    }
+
     @Test
     public void thatOverYearOldCourseIsRemoved() {
         String endDateInPast = DateUtil.getOverYearAgoPastDateString();
@@ -232,12 +248,15 @@ public class FullSynchronizationJobTest extends AbstractSynchronizationJobTest {
             )
         );
 
-        expectFindStudentRequestToMoodle(MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA);
-        expectFindStudentRequestToMoodle(MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA);
-        expectFindStudentRequestToMoodle(MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE);
-
-        expectFindTeacherRequestToMoodle(MOODLE_USERNAME_ONE, MOODLE_USER_TEACH_ONE);
-        expectFindTeacherRequestToMoodle(MOODLE_USERNAME_TWO, MOODLE_USER_TEACH_TWO);
+        // The students and teachers of the course are looked up from Moodle in one request.
+        expectGetUsersRequestToMoodle(
+            Arrays.asList(MOODLE_USERNAME_NIINA, MOODLE_USERNAME_JUKKA, MOODLE_USERNAME_MAKE, MOODLE_USERNAME_ONE, MOODLE_USERNAME_TWO),
+            ImmutableMap.of(
+                MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA,
+                MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA,
+                MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE,
+                MOODLE_USERNAME_ONE, MOODLE_USER_TEACH_ONE,
+                MOODLE_USERNAME_TWO, MOODLE_USER_TEACH_TWO));
 
         expectEnrollmentRequestToMoodle(
             new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
@@ -301,8 +320,7 @@ public class FullSynchronizationJobTest extends AbstractSynchronizationJobTest {
 
         prepareMoodleGetEnrolledUsersForCoursesMock(MOODLE_COURSE_ID_IN_DB, Collections.emptyList());
 
-        expectGetUserRequestToMoodleUserNotFound(MOODLE_USERNAME_NIINA);
-        expectGetUserRequestToMoodleUserNotFound(MOODLE_USERNAME_HRAOPE);
+        expectGetUsersRequestToMoodle(Arrays.asList(MOODLE_USERNAME_NIINA, MOODLE_USERNAME_HRAOPE), Collections.emptyMap());
 
         SynchronizationSummary summary = synchronizationService.synchronize(SynchronizationType.FULL);
 
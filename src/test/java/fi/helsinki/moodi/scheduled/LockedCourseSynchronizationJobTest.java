@@ -68,8 +68,10 @@ public class LockedCourseSynchronizationJobTest extends AbstractSynchronizationJ
     public void thatLockedCourseIsUnlockedWhenUnlockSynchronizationIsTriggeredAndThresholdsAreNotExceeded() {
         Course course = getTestCourse();
         assertTrue(syncLockService.isLocked(course));
+        assertTrue(syncLockService.getLockedCourseIds().contains(course.id));
         testSynchronizationSummary(SynchronizationType.UNLOCK, EMPTY_RESPONSE, false);
         assertFalse(syncLockService.isLocked(course));
+        assertFalse(syncLockService.getLockedCourseIds().contains(course.id));
     }
 
     @Test
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.scheduled;
+
+import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
+import fi.helsinki.moodi.service.synchronize.SynchronizationQueue;
+import fi.helsinki.moodi.service.synchronize.SynchronizationType;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.Collections;
+
+import static fi.helsinki.moodi.test.util.DateUtil.getFutureDateString;
+import static org.junit.Assert.assertEquals;
+
+@TestPropertySource(properties = {"synchronize.queue.enabled = true", "synchronize.queue.debounceMillis = 0"})
+public class QueuedSynchronizationJobTest extends AbstractSynchronizationJobTest {
+
+    @Autowired
+    private SynchronizationQueue synchronizationQueue;
+
+    @Autowired
+    private QueuedSynchronizationJob queuedSynchronizationJob;
+
+    @Test
+    public void thatRepeatedlyQueuedCourseIsSynchronizedOnce() {
+        setUpMockServerResponses(getFutureDateString(), true);
+
+        prepareMoodleGetEnrolledUsersForCoursesMock(MOODLE_COURSE_ID_IN_DB, Collections.emptyList());
+
+        expectFindUsersRequestsToMoodle();
+
+        expectEnrollmentRequestToMoodle(
+            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getTeacherRoleId(), MOODLE_USER_HRAOPE, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_HRAOPE, MOODLE_COURSE_ID_IN_DB));
+
+        synchronizationQueue.enqueue(SISU_REALISATION_IN_DB_ID, "test");
+        synchronizationQueue.enqueue(SISU_REALISATION_IN_DB_ID, "test again");
+        assertEquals(1, synchronizationQueue.size());
+
+        queuedSynchronizationJob.execute();
+
+        assertEquals(0, synchronizationQueue.size());
+    }
+
+    @Test
+    public void thatQueueIsLeftAsIsWhileSynchronizationRunIsInProgress() {
+        synchronizationJobRunService.begin(SynchronizationType.FULL);
+        synchronizationQueue.enqueue(SISU_REALISATION_IN_DB_ID, "test");
+
+        queuedSynchronizationJob.execute();
+
+        assertEquals(1, synchronizationQueue.size());
+        assertEquals(Collections.singletonList(SISU_REALISATION_IN_DB_ID), synchronizationQueue.drain(10));
+    }
+
+    @Test
+    public void thatCourseNotImportedIsDropped() {
+        synchronizationQueue.enqueue(SISU_REALISATION_NOT_IN_DB_ID, "test");
+
+        queuedSynchronizationJob.execute();
+
+        assertEquals(0, synchronizationQueue.size());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.scheduled;
+
+import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
+import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
+import fi.helsinki.moodi.service.synchronize.SynchronizationStatus;
+import fi.helsinki.moodi.service.synchronize.SynchronizationSummary;
+import fi.helsinki.moodi.service.synchronize.SynchronizationType;
+import fi.helsinki.moodi.service.synchronize.process.ProcessingStatus;
+import fi.helsinki.moodi.service.synchronize.process.UserSynchronizationItem.UserSynchronizationItemStatus;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.Collections;
+
+import static fi.helsinki.moodi.test.util.DateUtil.getFutureDateString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@TestPropertySource(properties = {"synchronize.windowSize = 1"})
+public class WindowedFullSynchronizationJobTest extends AbstractSynchronizationJobTest {
+
+    @Test
+    public void thatCourseIsSynchronizedInWindowAndReleased() {
+        setUpMockServerResponses(getFutureDateString(), true);
+
+        prepareMoodleGetEnrolledUsersForCoursesMock(MOODLE_COURSE_ID_IN_DB, Collections.emptyList());
+
+        expectFindUsersRequestsToMoodle();
+
+        expectEnrollmentRequestToMoodle(
+            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getTeacherRoleId(), MOODLE_USER_HRAOPE, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_HRAOPE, MOODLE_COURSE_ID_IN_DB));
+
+        SynchronizationSummary summary = synchronizationService.synchronize(SynchronizationType.FULL);
+
+        assertEquals(SynchronizationStatus.COMPLETED_SUCCESS, summary.getStatus());
+        assertEquals(1, summary.getItemCount());
+
+        // Only the counts of successful users are kept once the window is done.
+        SynchronizationItem item = summary.getItems().get(0);
+        assertEquals(ProcessingStatus.SUCCESS, item.getProcessingStatus());
+        assertTrue(item.getUserSynchronizationItems().isEmpty());
+        assertEquals(Long.valueOf(2), item.getReleasedUserItemCounts().get(UserSynchronizationItemStatus.SUCCESS));
+    }
+}
@@ -17,6 +17,7 @@
 
 package fi.helsinki.moodi.service;
 
+import com.google.common.collect.ImmutableMap;
 import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
 import fi.helsinki.moodi.service.course.Course;
 import fi.helsinki.moodi.service.course.CourseRepository;
@@ -93,11 +94,16 @@ public class ImportingServiceTest extends AbstractMoodiIntegrationTest {
         mockSisuGraphQLServer.expectPersonsRequest(Arrays.asList("hy-hlo-1", "hy-hlo-2", "hy-hlo-2.1"),
             "/sisu/persons-many-1.json");
         expectCreateCourseRequestToMoodle(REALISATION_ID, MOODLE_COURSE_ID);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA, delayed);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA, delayed);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE, delayed);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_ONE, MOODLE_USER_TEACH_ONE, delayed);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_CREATOR, MOODLE_USER_CREATOR, delayed);
+        // All the users of the course are looked up from Moodle in one request.
+        expectGetUsersRequestToMoodle(
+            Arrays.asList(MOODLE_USERNAME_NIINA, MOODLE_USERNAME_JUKKA, MOODLE_USERNAME_MAKE, MOODLE_USERNAME_ONE, MOODLE_USERNAME_CREATOR),
+            ImmutableMap.of(
+                MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA,
+                MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA,
+                MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE,
+                MOODLE_USERNAME_ONE, MOODLE_USER_TEACH_ONE,
+                MOODLE_USERNAME_CREATOR, MOODLE_USER_CREATOR),
+            delayed);
         expectPostEnrollmentsRequestToMoodle();
 
         Result<ImportCourseResponse, String> result = importingService.importCourse(importCourseRequest);
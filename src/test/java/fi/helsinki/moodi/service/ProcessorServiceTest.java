@@ -26,11 +26,13 @@ import fi.helsinki.moodi.integration.studyregistry.StudyRegistryStudent;
 import fi.helsinki.moodi.integration.studyregistry.StudyRegistryTeacher;
 import fi.helsinki.moodi.service.course.Course;
 import fi.helsinki.moodi.service.course.CourseRepository;
+import fi.helsinki.moodi.service.course.CourseService;
 import fi.helsinki.moodi.service.synchronize.SynchronizationItem;
 import fi.helsinki.moodi.service.synchronize.SynchronizationType;
 import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentStatus;
 import fi.helsinki.moodi.service.synchronize.process.ProcessingStatus;
 import fi.helsinki.moodi.service.synchronize.process.ProcessorService;
+import fi.helsinki.moodi.service.synchronize.process.SynchronizingProcessor;
 import fi.helsinki.moodi.service.time.TimeService;
 import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
 import org.junit.Test;
@@ -38,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.web.client.MockRestServiceServer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +48,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
@@ -75,6 +79,12 @@ public class ProcessorServiceTest extends AbstractMoodiIntegrationTest {
     @Autowired
     private TimeService timeService;
 
+    @Autowired
+    private CourseService courseService;
+
+    @Autowired
+    private SynchronizingProcessor synchronizingProcessor;
+
     @MockBean
     private CourseRepository courseRepository;
 
@@ -99,7 +109,6 @@ public class ProcessorServiceTest extends AbstractMoodiIntegrationTest {
         List<Integer> expectedUsers = Arrays.asList(0, 1, 2, 3);
         List<Integer> expectedTeachers = Arrays.asList(0, 1);
         expectGetUserRequestsToMoodle(expectedUsers, expectedTeachers, 0);
-        expectPostEnrollmentsRequestToMoodle(0, false);
 
         // Items 1-6 need no mocks because they will be skipped or successfully deleted.
         items.get(1).completeEnrichmentPhase(EnrichmentStatus.IN_PROGRESS, "in progress");
@@ -123,7 +132,6 @@ public class ProcessorServiceTest extends AbstractMoodiIntegrationTest {
         expectedUsers = Arrays.asList(7, 8, 9, 10);
         expectedTeachers = Arrays.asList(7, 8);
         expectGetUserRequestsToMoodle(expectedUsers, expectedTeachers, 7);
-        expectPostEnrollmentsRequestToMoodle(7, false);
 
         // Prepare mocks for successful processing of item 8
         item = items.get(8);
@@ -134,7 +142,13 @@ public class ProcessorServiceTest extends AbstractMoodiIntegrationTest {
         expectedUsers = singletonList(11);
         expectedTeachers = singletonList(9);
         expectGetUserRequestsToMoodle(expectedUsers, expectedTeachers, 8);
-        expectPostEnrollmentsRequestToMoodle(8, true);
+
+        // The enrollments of items 0, 7 and 8 are sent to Moodle in one call.
+        List<MoodleEnrollment> enrollments = new ArrayList<>();
+        enrollments.addAll(postedEnrollments(0, false));
+        enrollments.addAll(postedEnrollments(7, false));
+        enrollments.addAll(postedEnrollments(8, true));
+        expectEnrollmentRequestToMoodleWithResponse(EMPTY_RESPONSE, enrollments.toArray(new MoodleEnrollment[0]));
 
         // items are grouped by their relevant action and actions are processed in this order:
         // Action.SKIP = ProcessorService.skipItem
@@ -151,7 +165,46 @@ public class ProcessorServiceTest extends AbstractMoodiIntegrationTest {
         }
     }
 
-    private void expectPostEnrollmentsRequestToMoodle(int courseId, boolean missingFirst) {
+    @Test
+    public void thatParallelPlanningKeepsItemOrderAndIsolatesFailedItem() {
+        STUDENT_ROLE.roleId = STUDENT_ROLE_ID;
+        TEACHER_ROLE.roleId = TEACHER_ROLE_ID;
+        createStudyRegistryStudents();
+        createStudyRegistryTeachers();
+        ProcessorService parallelProcessorService = new ProcessorService(courseService, synchronizingProcessor, 2);
+        // Items are planned concurrently, so their user lookups reach Moodle in any order.
+        moodleReadOnlyMockServer = MockRestServiceServer.bindTo(moodleReadOnlyRestTemplate).ignoreExpectOrder(true).build();
+
+        // Items with users of their own, so that no item depends on users cached by another.
+        List<SynchronizationItem> items = Arrays.asList(
+            createFullSynchronizationItem("hy-CUR-0", 0),
+            createFullSynchronizationItem("hy-CUR-5", 5),
+            createFullSynchronizationItem("hy-CUR-10", 10));
+        items.forEach(item -> {
+            item.completeEnrichmentPhase(EnrichmentStatus.SUCCESS, "success");
+            when(courseRepository.findByRealisationId(item.getCourse().realisationId)).thenReturn(Optional.of(item.getCourse()));
+        });
+
+        // The user lookup of the first item fails.
+        expectFailingGetUserRequestToMoodle(0);
+        expectGetUserRequestsToMoodle(Arrays.asList(5, 6, 7, 8), Arrays.asList(5, 6), 5);
+        expectGetUserRequestsToMoodle(Arrays.asList(10, 11, 12, 13), Arrays.asList(10, 11), 10);
+
+        // Only the enrollments of the planned items are sent to Moodle.
+        List<MoodleEnrollment> enrollments = new ArrayList<>();
+        enrollments.addAll(postedEnrollments(5, false));
+        enrollments.addAll(postedEnrollments(10, false));
+        expectEnrollmentRequestToMoodleWithResponse(EMPTY_RESPONSE, enrollments.toArray(new MoodleEnrollment[0]));
+
+        List<SynchronizationItem> processedItems = parallelProcessorService.process(items);
+
+        assertEquals(Arrays.asList(0L, 5L, 10L), processedItems.stream().map(item -> item.getCourse().moodleId).collect(Collectors.toList()));
+        assertEquals(ProcessingStatus.ERROR, processedItems.get(0).getProcessingStatus());
+        assertEquals(ProcessingStatus.SUCCESS, processedItems.get(1).getProcessingStatus());
+        assertEquals(ProcessingStatus.SUCCESS, processedItems.get(2).getProcessingStatus());
+    }
+
+    private List<MoodleEnrollment> postedEnrollments(int courseId, boolean missingFirst) {
         List<MoodleEnrollment> enrollments = new ArrayList<>();
         // For some reason in last batch missing teacher is posted first.
         if (missingFirst) {
@@ -170,21 +223,37 @@ public class ProcessorServiceTest extends AbstractMoodiIntegrationTest {
             enrollments.add(new MoodleEnrollment(TEACHER_ROLE_ID, MISSING_TEACHER_ID_BASE + courseId, courseId));
             enrollments.add(new MoodleEnrollment(SYNCED_ROLE_ID, MISSING_TEACHER_ID_BASE + courseId, courseId));
         }
-        expectEnrollmentRequestToMoodleWithResponse(EMPTY_RESPONSE, enrollments.toArray(new MoodleEnrollment[0]));
+        return enrollments;
     }
 
     private void expectGetUserRequestsToMoodle(List<Integer> expectedStudents, List<Integer> expectedTeachers, int missingId) {
+        List<String> usernames = new ArrayList<>();
+        Map<String, Long> moodleIdsByUsername = new HashMap<>();
         expectedStudents.forEach(i -> {
                 StudyRegistryStudent student = STUDY_REGISTRY_STUDENTS.get(i);
-                expectGetUserRequestToMoodle(student.userName, i, delayed);
+                usernames.add(student.userName);
+                moodleIdsByUsername.put(student.userName, (long) i);
             }
         );
         expectedTeachers.forEach(i -> {
                 StudyRegistryTeacher teacher = STUDY_REGISTRY_TEACHERS.get(i);
-                expectGetUserRequestToMoodle(teacher.userName, TEACHER_ID_BASE + i, delayed);
+                usernames.add(teacher.userName);
+                moodleIdsByUsername.put(teacher.userName, (long) TEACHER_ID_BASE + i);
             }
         );
-        expectGetUserRequestToMoodle("missing_creator" + missingId + "@test.fi", MISSING_TEACHER_ID_BASE + missingId, delayed);
+        String creatorUsername = "missing_creator" + missingId + "@test.fi";
+        usernames.add(creatorUsername);
+        moodleIdsByUsername.put(creatorUsername, (long) MISSING_TEACHER_ID_BASE + missingId);
+        // The users of one course are looked up from Moodle in one request.
+        expectGetUsersRequestToMoodle(usernames, moodleIdsByUsername, delayed);
+    }
+
+    private void expectFailingGetUserRequestToMoodle(int courseId) {
+        List<String> usernames = new ArrayList<>();
+        STUDY_REGISTRY_STUDENTS.subList(courseId, courseId + 4).forEach(student -> usernames.add(student.userName));
+        STUDY_REGISTRY_TEACHERS.subList(courseId, courseId + 2).forEach(teacher -> usernames.add(teacher.userName));
+        usernames.add("missing_creator" + courseId + "@test.fi");
+        expectGetUsersRequestToMoodleWithServerError(usernames);
     }
 
     private void createStudyRegistryStudents() {
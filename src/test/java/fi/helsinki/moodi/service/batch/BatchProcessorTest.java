@@ -19,9 +19,13 @@ package fi.helsinki.moodi.service.batch;
 
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class BatchProcessorTest {
@@ -42,6 +46,67 @@ public class BatchProcessorTest {
         assertTrue(processedItems.stream().allMatch(item -> item.getProcessedCount() == 1));
     }
 
+    @Test
+    public void thatConcurrentlyProcessedBatchesAreReturnedInOrder() {
+
+        List<BatchItem> batchItems = createBatchItems(ITEM_COUNT);
+
+        BatchProcessor<BatchItem> batchProcessor = new BatchProcessor<>();
+
+        List<BatchItem> processedItems = batchProcessor.process(
+            batchItems,
+            this::processBatch,
+            BatchPolicy.sequential(BATCH_SIZE).withParallelism(4));
+
+        assertEquals(ITEM_COUNT, processedItems.size());
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            assertSame(batchItems.get(i), processedItems.get(i));
+        }
+        assertTrue(processedItems.stream().allMatch(item -> item.getProcessedCount() == 1));
+    }
+
+    @Test
+    public void thatFailedBatchIsRetried() {
+
+        List<BatchItem> batchItems = createBatchItems(ITEM_COUNT);
+        AtomicInteger calls = new AtomicInteger();
+
+        BatchProcessor<BatchItem> batchProcessor = new BatchProcessor<>();
+
+        List<BatchItem> processedItems = batchProcessor.process(
+            batchItems,
+            itemsToProcess -> {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("First attempt fails");
+                }
+                return processBatch(itemsToProcess);
+            },
+            BatchPolicy.sequential(BATCH_SIZE).withMaxAttempts(2));
+
+        assertEquals(ITEM_COUNT, processedItems.size());
+        assertTrue(processedItems.stream().allMatch(item -> item.getProcessedCount() == 1));
+    }
+
+    @Test(expected = BatchProcessingException.class)
+    public void thatBatchTimesOut() {
+
+        List<BatchItem> batchItems = createBatchItems(ITEM_COUNT);
+
+        BatchProcessor<BatchItem> batchProcessor = new BatchProcessor<>();
+
+        batchProcessor.process(
+            batchItems,
+            itemsToProcess -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return itemsToProcess;
+            },
+            BatchPolicy.sequential(BATCH_SIZE).withTimeout(Duration.ofMillis(50)));
+    }
+
     private List<BatchItem> processBatch(List<BatchItem> itemsToProcess) {
         itemsToProcess.stream()
             .forEach(item -> item.setProcessed(true));
@@ -0,0 +1,85 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.batch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrentTasksTest {
+
+    @Test
+    public void thatResultsAreReturnedInTaskOrder() {
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        final List<Callable<String>> tasks = Arrays.asList(
+            () -> {
+                // The first task finishes last.
+                assertTrue(secondDone.await(5, TimeUnit.SECONDS));
+                return "first";
+            },
+            () -> {
+                secondDone.countDown();
+                return "second";
+            });
+
+        assertEquals(Arrays.asList("first", "second"), ConcurrentTasks.invokeInOrder(tasks, 2, ConcurrentTasks.threadFactory("test-%d")));
+    }
+
+    @Test
+    public void thatErrorOfFirstFailedTaskIsThrownWithOthersSuppressed() {
+        final IllegalStateException firstFailure = new IllegalStateException("first");
+        final IllegalStateException secondFailure = new IllegalStateException("second");
+        final List<Callable<String>> tasks = Arrays.asList(
+            () -> "ok",
+            () -> {
+                throw firstFailure;
+            },
+            () -> {
+                throw secondFailure;
+            });
+
+        try {
+            ConcurrentTasks.invokeInOrder(tasks, 3, ConcurrentTasks.threadFactory("test-%d"));
+            fail("Expected the failed tasks to fail the call");
+        } catch (IllegalStateException e) {
+            assertSame(firstFailure, e);
+            assertEquals(1, e.getSuppressed().length);
+            assertSame(secondFailure, e.getSuppressed()[0]);
+        }
+    }
+
+    @Test(expected = BatchProcessingException.class)
+    public void thatCheckedErrorIsWrapped() {
+        final List<Callable<String>> tasks = Arrays.asList(
+            () -> "ok",
+            () -> {
+                throw new Exception("checked");
+            });
+
+        ConcurrentTasks.invokeInOrder(tasks, 2, ConcurrentTasks.threadFactory("test-%d"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.course;
+
+import fi.helsinki.moodi.service.time.TimeService;
+import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fi.helsinki.moodi.service.course.Course.ImportStatus.COMPLETED;
+import static fi.helsinki.moodi.service.course.Course.ImportStatus.IN_PROGRESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class CourseServiceTest extends AbstractMoodiIntegrationTest {
+
+    // Enough courses for more than one write back batch of both completed and removed courses.
+    private static final int COURSE_COUNT = 1100;
+    private static final LocalDateTime CREATED = LocalDateTime.of(2020, 1, 1, 12, 0);
+    private static final LocalDateTime MODIFIED = LocalDateTime.of(2020, 1, 2, 12, 0);
+
+    @MockBean
+    private TimeService timeService;
+
+    @Autowired
+    private CourseService courseService;
+
+    @Autowired
+    private CourseRepository courseRepository;
+
+    @Test
+    public void thatCompletedAndRemovedCoursesAreWrittenBack() {
+        when(timeService.getCurrentUTCDateTime()).thenReturn(CREATED);
+        final Course untouched = courseService.findByRealisationId(SISU_REALISATION_IN_DB_ID).get();
+
+        final CourseStateChanges changes = new CourseStateChanges();
+        final List<Long> completedIds = new ArrayList<>();
+        final List<Long> removedIds = new ArrayList<>();
+        for (int i = 0; i < COURSE_COUNT; i++) {
+            final Course course = courseService.createCourse("hy-CUR-writeback-" + i, null, null);
+            if (i % 2 == 0) {
+                changes.completeImport(course);
+                completedIds.add(course.id);
+            } else {
+                changes.markAsRemoved(course, "removed " + course.id);
+                removedIds.add(course.id);
+            }
+        }
+        // A course that was never saved has nothing to write back.
+        changes.completeImport(new Course());
+
+        when(timeService.getCurrentUTCDateTime()).thenReturn(MODIFIED);
+        courseService.writeBack(changes);
+
+        final List<Course> completedCourses = courseRepository.findAllById(completedIds);
+        assertEquals(completedIds.size(), completedCourses.size());
+        completedCourses.forEach(course -> {
+            assertEquals(COMPLETED, course.importStatus);
+            assertFalse(course.removed);
+            assertNull(course.removedMessage);
+            assertEquals(MODIFIED, course.modified);
+        });
+
+        final List<Course> removedCourses = courseRepository.findAllById(removedIds);
+        assertEquals(removedIds.size(), removedCourses.size());
+        removedCourses.forEach(course -> {
+            assertEquals(IN_PROGRESS, course.importStatus);
+            assertTrue(course.removed);
+            assertEquals("removed " + course.id, course.removedMessage);
+            assertEquals(MODIFIED, course.modified);
+        });
+
+        final Course untouchedAfter = courseRepository.findById(untouched.id).get();
+        assertEquals(untouched.importStatus, untouchedAfter.importStatus);
+        assertEquals(untouched.removed, untouchedAfter.removed);
+        assertEquals(untouched.modified, untouchedAfter.modified);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.enrollmentstatus;
+
+import fi.helsinki.moodi.service.course.CourseService;
+import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class CourseEnrollmentStatusServiceTest extends AbstractMoodiIntegrationTest {
+
+    @Autowired
+    private CourseEnrollmentStatusService courseEnrollmentStatusService;
+
+    @Autowired
+    private CourseEnrollmentStatusRepository courseEnrollmentStatusRepository;
+
+    @Autowired
+    private CourseService courseService;
+
+    @Test
+    public void thatStoredStatusIsUpdatedAndNewStatusesAreInserted() {
+        long courseId = courseService.findByRealisationId(SISU_REALISATION_IN_DB_ID).get().id;
+        long otherCourseId = courseService.createCourse("hy-CUR-status-new", null, null).id;
+
+        courseEnrollmentStatusService.markVerified(Collections.singletonMap(courseId, "first"));
+
+        Map<Long, String> fingerprints = new HashMap<>();
+        fingerprints.put(courseId, "second");
+        fingerprints.put(otherCourseId, "other");
+        courseEnrollmentStatusService.markVerified(fingerprints);
+
+        Map<Long, String> stored = courseEnrollmentStatusRepository.findByCourseIdIn(Arrays.asList(courseId, otherCourseId)).stream()
+            .collect(Collectors.toMap(status -> status.courseId, status -> status.fingerprint));
+        assertEquals(fingerprints, stored);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.service.synchronize;
+
+import com.google.common.collect.ImmutableMap;
+import fi.helsinki.moodi.integration.sisu.SisuEnrolment;
+import fi.helsinki.moodi.service.course.CourseService;
+import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentStatus;
+import fi.helsinki.moodi.service.synchronize.job.SynchronizationJobRun;
+import fi.helsinki.moodi.service.synchronize.job.SynchronizationJobRunService;
+import fi.helsinki.moodi.service.synclock.SyncLockService;
+import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+
+import static fi.helsinki.moodi.test.util.DateUtil.getFutureDateString;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class IncrementalSynchronizationTest extends AbstractMoodiIntegrationTest {
+
+    private static final String CUR_EXPORT_PATH = "/kori/api/course-unit-realisations/v1/export";
+    private static final String ENROLMENT_EXPORT_PATH = "/ilmo/api/enrolments/v1/export";
+
+    @Autowired
+    private SynchronizationService synchronizationService;
+
+    @Autowired
+    private SynchronizationJobRunService synchronizationJobRunService;
+
+    @Autowired
+    private CourseService courseService;
+
+    @Autowired
+    private SyncLockService syncLockService;
+
+    @Test
+    public void thatExportCursorIsSavedAndUsedByNextRun() {
+        // The first run starts from the end of the exports, without synchronizing the courses changed before that.
+        expectExportEnd();
+        expectExport(CUR_EXPORT_PATH, 15, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+        expectExport(ENROLMENT_EXPORT_PATH, 120, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+
+        SynchronizationSummary summary = synchronizationService.synchronize(SynchronizationType.INCREMENTAL);
+
+        assertEquals(SynchronizationStatus.COMPLETED_SUCCESS, summary.getStatus());
+        assertEquals(0, summary.getItemCount());
+
+        SynchronizationJobRun run = synchronizationJobRunService.findLatestIncrementalJobWithExportCursor().get();
+        assertEquals(Long.valueOf(15), run.curExportOrdinal);
+        assertEquals(Long.valueOf(120), run.enrolmentExportOrdinal);
+
+        // Nothing has changed, so the empty pages must not move the cursor backwards.
+        expectExport(CUR_EXPORT_PATH, 15, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+        expectExport(ENROLMENT_EXPORT_PATH, 120, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+
+        synchronizationService.synchronize(SynchronizationType.INCREMENTAL);
+
+        SynchronizationJobRun nextRun = synchronizationJobRunService.findLatestIncrementalJobWithExportCursor().get();
+        assertTrue(nextRun.id > run.id);
+        assertEquals(Long.valueOf(15), nextRun.curExportOrdinal);
+        assertEquals(Long.valueOf(120), nextRun.enrolmentExportOrdinal);
+    }
+
+    @Test
+    public void thatExportCursorIsMovedPastLockedCourse() {
+        expectExportEnd();
+        expectExport(CUR_EXPORT_PATH, 15, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+        expectExport(ENROLMENT_EXPORT_PATH, 120, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+
+        synchronizationService.synchronize(SynchronizationType.INCREMENTAL);
+
+        SynchronizationJobRun run = synchronizationJobRunService.findLatestIncrementalJobWithExportCursor().get();
+
+        syncLockService.setLock(courseService.findByRealisationId(SISU_REALISATION_IN_DB_ID).get(), "Locked");
+        expectExport(CUR_EXPORT_PATH, 15,
+            "{\"greatestOrdinal\": 20, \"hasMore\": false, \"entities\": [{\"id\": \"" + SISU_REALISATION_IN_DB_ID + "\"}]}");
+        expectExport(ENROLMENT_EXPORT_PATH, 120, "{\"greatestOrdinal\": 0, \"hasMore\": false, \"entities\": []}");
+        mockSisuGraphQLServer.expectCourseUnitRealisationsRequest(
+            singletonList(SISU_REALISATION_IN_DB_ID),
+            "/sisu/sisu-course-realisation-in-db.json",
+            ImmutableMap.<String, Object>of("endDate", getFutureDateString(), "enrollmentState", SisuEnrolment.EnrolmentState.ENROLLED));
+        mockSisuGraphQLServer.expectPersonsRequest(singletonList("hy-hlo-4"), "/sisu/persons.json");
+
+        SynchronizationSummary summary = synchronizationService.synchronize(SynchronizationType.INCREMENTAL);
+
+        assertEquals(EnrichmentStatus.LOCKED, summary.getItems().get(0).getEnrichmentStatus());
+
+        // The locked course does not hold the cursor back, it is synchronized when it is unlocked.
+        SynchronizationJobRun nextRun = synchronizationJobRunService.findLatestIncrementalJobWithExportCursor().get();
+        assertTrue(nextRun.id > run.id);
+        assertEquals(Long.valueOf(20), nextRun.curExportOrdinal);
+        assertEquals(Long.valueOf(120), nextRun.enrolmentExportOrdinal);
+    }
+
+    /**
+     * Before the first run the end of the exports is found by paging through them.
+     */
+    private void expectExportEnd() {
+        expectExport(CUR_EXPORT_PATH, 0, "{\"greatestOrdinal\": 15, \"hasMore\": false, \"entities\": [{\"id\": \"hy-CUR-unknown\"}]}");
+        expectExport(ENROLMENT_EXPORT_PATH, 0,
+            "{\"greatestOrdinal\": 100, \"hasMore\": true, \"entities\": [{\"courseUnitRealisationId\": \"hy-CUR-unknown\"}]}");
+        expectExport(ENROLMENT_EXPORT_PATH, 100, "{\"greatestOrdinal\": 120, \"hasMore\": false, \"entities\": []}");
+    }
+
+    private void expectExport(String path, long since, String response) {
+        studyRegistryMockServer.expect(requestTo(getSisuUrl() + path + "?limit=10000&since=" + since))
+            .andExpect(method(HttpMethod.GET))
+            .andRespond(withSuccess(response, MediaType.APPLICATION_JSON));
+    }
+}
@@ -29,12 +29,15 @@ import org.junit.Test;
 import org.springframework.test.context.TestPropertySource;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 @TestPropertySource(properties = {"MoodleClient.batchsize=2", "SisuGraphQLClient.batchsize=2"})
 public class EnricherServiceTest extends AbstractMoodiIntegrationTest  {
@@ -44,40 +47,40 @@ public class EnricherServiceTest extends AbstractMoodiIntegrationTest  {
 
     @Test
     public void thatSisuCoursesAndPersonsAreFetched() {
-        setUpMockSisuAndPrefetchCourses();
+        EnrichmentContext context = setUpMockSisuAndPrefetchCourses();
         SynchronizationItem synchronizationItem = createFullSynchronizationItem("hy-CUR-1"); // Published and ongoing
 
-        enricherService.enrichWithSisuCourse(synchronizationItem);
+        enricherService.enrichWithSisuCourse(synchronizationItem, context);
 
         assertStatus(synchronizationItem, EnrichmentStatus.IN_PROGRESS, true);
     }
 
     @Test
     public void thatSynchronizationItemIsSetToErrorStatusWhenCourseIsNotFound() {
-        setUpMockSisuAndPrefetchCourses();
+        EnrichmentContext context = setUpMockSisuAndPrefetchCourses();
         SynchronizationItem synchronizationItem = createFullSynchronizationItem("hy-CUR-not-found");
 
-        enricherService.enrichWithSisuCourse(synchronizationItem);
+        enricherService.enrichWithSisuCourse(synchronizationItem, context);
 
         assertStatus(synchronizationItem, EnrichmentStatus.ERROR, false);
     }
 
     @Test
     public void thatUnPublishedCourseGetsEnriched() {
-        setUpMockSisuAndPrefetchCourses();
+        EnrichmentContext context = setUpMockSisuAndPrefetchCourses();
         SynchronizationItem synchronizationItem = createFullSynchronizationItem("hy-CUR-unpublished");
 
-        enricherService.enrichWithSisuCourse(synchronizationItem);
+        enricherService.enrichWithSisuCourse(synchronizationItem, context);
 
         assertStatus(synchronizationItem, EnrichmentStatus.IN_PROGRESS, true);
     }
 
     @Test
     public void thatSynchronizationItemIsSetToEndedStatusWhenCourseIsEnded() {
-        setUpMockSisuAndPrefetchCourses();
+        EnrichmentContext context = setUpMockSisuAndPrefetchCourses();
         SynchronizationItem synchronizationItem = createFullSynchronizationItem("hy-CUR-ended");
 
-        enricherService.enrichWithSisuCourse(synchronizationItem);
+        enricherService.enrichWithSisuCourse(synchronizationItem, context);
 
         assertStatus(synchronizationItem, EnrichmentStatus.COURSE_ENDED, false);
     }
@@ -147,6 +150,27 @@ public class EnricherServiceTest extends AbstractMoodiIntegrationTest  {
         }
     }
 
+    @Test
+    public void thatUsersEnrolledInAnyCourseOfTheRunAreSharedThroughTheContext() {
+        List<SynchronizationItem> items = new ArrayList<>();
+        for (int i = 1; i < 3; i++) {
+            items.add(createFullSynchronizationItem("hy-CUR-" + i, i));
+        }
+        prepareSisuPrefetchMock(items);
+        prepareMoodleGetCoursesResponseMock(
+            items.stream().map(item -> item.getCourse().moodleId).collect(Collectors.toList()), delayed);
+        prepareMoodleGetEnrolledUsersForCoursesMock(Arrays.asList(
+            new MoodleCourseWithEnrollments(1L, singletonList(getMoodleUserEnrollments(7, "niina", 1, getStudentRoleId()))),
+            new MoodleCourseWithEnrollments(2L, Collections.emptyList())));
+
+        List<SynchronizationItem> enrichedItems = enricherService.enrichItems(items);
+
+        EnrichmentContext context = enrichedItems.get(1).getEnrichmentContext();
+        assertSame(enrichedItems.get(0).getEnrichmentContext(), context);
+        assertEquals(Long.valueOf(7), context.getMoodleUser(singletonList("niina")).map(user -> user.id).orElse(null));
+        assertFalse(createFullSynchronizationItem("hy-CUR-1").getEnrichmentContext().getMoodleUser(singletonList("niina")).isPresent());
+    }
+
     private void mockSisuCURRequestForBatch(List<SynchronizationItem> itemBatch) {
         String curs = itemBatch.stream().map(item -> Fixtures.asString("/sisu/course-unit-realisation-template.json",
             new ImmutableMap.Builder<String, String>()
@@ -393,10 +393,18 @@ public class SynchronizingProcessorTest extends AbstractMoodiIntegrationTest {
         }
 
         public CourseSynchronizationRequestChain expectUserRequestsToMoodle(String studentUserName) {
-            studentMap.forEach((moodleUserId, sisuStudent) -> expectGetUserRequestToMoodle(
-                studentUserName, moodleUserId));
-            teacherMap.forEach((moodleUserId, sisuTeacher) -> expectGetUserRequestToMoodle(
-                TEACHER_USERNAME, moodleUserId));
+            List<String> usernames = newArrayList();
+            Map<String, Long> moodleIdsByUsername = new HashMap<>();
+            studentMap.keySet().forEach(moodleUserId -> moodleIdsByUsername.put(studentUserName, moodleUserId));
+            teacherMap.keySet().forEach(moodleUserId -> moodleIdsByUsername.put(TEACHER_USERNAME, moodleUserId));
+            if (!studentMap.isEmpty()) {
+                usernames.add(studentUserName);
+            }
+            if (!teacherMap.isEmpty()) {
+                usernames.add(TEACHER_USERNAME);
+            }
+            // The student and the teacher are looked up from Moodle in one request.
+            expectGetUsersRequestToMoodle(usernames, moodleIdsByUsername);
 
             return this;
         }
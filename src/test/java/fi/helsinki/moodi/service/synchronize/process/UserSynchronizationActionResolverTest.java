@@ -47,6 +47,7 @@ public class UserSynchronizationActionResolverTest extends AbstractMoodiIntegrat
     private static final Long TEACHER_ROLE = 3L;
     private static final Long STUDENT_ROLE = 5L;
     private static final Long SYNCED_ROLE = 10L;
+    private static final Long UNMANAGED_ROLE = 99L;
 
     @Autowired
     private UserSynchronizationActionResolver userSynchronizationActionResolver;
@@ -172,6 +173,16 @@ public class UserSynchronizationActionResolverTest extends AbstractMoodiIntegrat
         assertActions(item, Maps.newHashMap());
     }
 
+    @Test
+    public void thatStudentWithAnUnmanagedRoleIsNotSuspended() {
+        UserSynchronizationItem item = getStudentUserSynchronizationItem(false);
+        item.withMoodleUserEnrollments(getMoodleUserEnrollments(newArrayList(SYNCED_ROLE, UNMANAGED_ROLE), MOODLE_COURSE_ID));
+
+        userSynchronizationActionResolver.enrichWithActions(item);
+
+        assertActions(item, Maps.newHashMap());
+    }
+
     private MoodleUserEnrollments getMoodleUserEnrollments(List<Long> roleIds, Long...moodleCourseIds) {
         MoodleUserEnrollments moodleUserEnrollments = new MoodleUserEnrollments();
         moodleUserEnrollments.roles = roleIds.stream().map(role -> {
@@ -20,13 +20,17 @@ package fi.helsinki.moodi.service.util;
 import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
 import fi.helsinki.moodi.test.fixtures.Fixtures;
 import org.junit.Test;
+import fi.helsinki.moodi.integration.sisu.SisuClient;
+import fi.helsinki.moodi.integration.sisu.SisuOrganisationCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 
 import static org.junit.Assert.assertEquals;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 public class MapperServiceTest extends AbstractMoodiIntegrationTest {
@@ -34,6 +38,12 @@ public class MapperServiceTest extends AbstractMoodiIntegrationTest {
     @Autowired
     private MapperService mapperService;
 
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private SisuOrganisationCache sisuOrganisationCache;
+
     @Test
     public void getExistingMoodleRole() {
         assertEquals(getStudentRoleId(), mapperService.getMoodleRole("student"));
@@ -80,4 +90,92 @@ public class MapperServiceTest extends AbstractMoodiIntegrationTest {
 
         assertEquals("8", mapperService.getMoodleCategoryByOrganisationId("hy-org-34002592"));
     }
+
+    @Test
+    public void organisationRefreshFetchesOnlyChanges() {
+        expectSisuOrganisationExportRequest();
+        studyRegistryMockServer.expect(requestTo(getSisuUrl() + "/kori/api/organisations/v2/export?limit=10000&since=140012967"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess("{\"greatestOrdinal\": 140012968, \"hasMore\": false, \"entities\": [{"
+                    + "\"id\": \"hy-org-new\", \"parentId\": \"hy-org-1000000911\", \"snapshotDateTime\": \"2020-01-01T00:00\", "
+                    + "\"documentState\": \"ACTIVE\", \"status\": \"ACTIVE\"}]}", MediaType.APPLICATION_JSON));
+
+        assertEquals("17", mapperService.getMoodleCategoryByOrganisationId("hy-org-new"));
+
+        cacheManager.getCache(SisuClient.ORGANISATIONS_BY_ID_CACHE).clear();
+
+        // The new organisation is under "Matlu", the previously exported ones are still known.
+        assertEquals("9", mapperService.getMoodleCategoryByOrganisationId("hy-org-new"));
+        assertEquals("8", mapperService.getMoodleCategoryByOrganisationId("hy-org-34002592"));
+    }
+
+    @Test
+    public void failedOrganisationRefreshKeepsPreviousCopy() {
+        expectSisuOrganisationExportRequest();
+        studyRegistryMockServer.expect(requestTo(getSisuUrl() + "/kori/api/organisations/v2/export?limit=10000&since=140012967"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withServerError());
+
+        assertEquals("8", mapperService.getMoodleCategoryByOrganisationId("hy-org-34002592"));
+
+        sisuOrganisationCache.refresh();
+
+        assertEquals("8", mapperService.getMoodleCategoryByOrganisationId("hy-org-34002592"));
+    }
+
+    @Test
+    public void deactivatedLatestOrganisationSnapshotFallsBackToEarlierOne() {
+        expectSisuOrganisationExportRequest();
+        // A new organisation moves from "Matlu" to "Maa- ja metsä".
+        expectOrganisationExportRequest(140012967, "{\"greatestOrdinal\": 140012968, \"hasMore\": false, \"entities\": ["
+            + organisationJson("hy-org-new", "hy-org-1000000911", "2020-01-01T00:00", "ACTIVE") + ", "
+            + organisationJson("hy-org-new", "hy-org-1000000941", "2021-01-01T00:00", "ACTIVE") + "]}");
+        // The move is deactivated, so the export is read again from the start to find the earlier snapshot.
+        expectOrganisationExportRequest(140012968, "{\"greatestOrdinal\": 140012969, \"hasMore\": false, \"entities\": ["
+            + organisationJson("hy-org-new", "hy-org-1000000941", "2021-01-01T00:00", "DELETED") + "]}");
+        expectOrganisationExportRequest(0, Fixtures.asString("/sisu/organisation-export.json")
+            .replace("\"greatestOrdinal\": 140012967", "\"greatestOrdinal\": 140012969")
+            .replace("\"entities\": [", "\"entities\": ["
+                + organisationJson("hy-org-new", "hy-org-1000000911", "2020-01-01T00:00", "ACTIVE") + ", "
+                + organisationJson("hy-org-new", "hy-org-1000000941", "2021-01-01T00:00", "ACTIVE") + ", "
+                + organisationJson("hy-org-new", "hy-org-1000000941", "2021-01-01T00:00", "DELETED") + ", "));
+
+        assertEquals("17", mapperService.getMoodleCategoryByOrganisationId("hy-org-new"));
+
+        cacheManager.getCache(SisuClient.ORGANISATIONS_BY_ID_CACHE).clear();
+        assertEquals("8", mapperService.getMoodleCategoryByOrganisationId("hy-org-new"));
+
+        cacheManager.getCache(SisuClient.ORGANISATIONS_BY_ID_CACHE).clear();
+        assertEquals("9", mapperService.getMoodleCategoryByOrganisationId("hy-org-new"));
+        assertEquals("8", mapperService.getMoodleCategoryByOrganisationId("hy-org-34002592"));
+    }
+
+    @Test
+    public void organisationsInACycleGetDefaultCategory() {
+        studyRegistryMockServer.expect(requestTo(getSisuUrl() + "/kori/api/organisations/v2/export?limit=10000&since=0"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess("{\"greatestOrdinal\": 3, \"hasMore\": false, \"entities\": ["
+                    + organisationJson("hy-org-a", "hy-org-b") + ", "
+                    + organisationJson("hy-org-b", "hy-org-a") + ", "
+                    + organisationJson("hy-org-c", "hy-org-a") + "]}", MediaType.APPLICATION_JSON));
+
+        assertEquals("17", mapperService.getMoodleCategoryByOrganisationId("hy-org-a"));
+        assertEquals("17", mapperService.getMoodleCategoryByOrganisationId("hy-org-b"));
+        assertEquals("17", mapperService.getMoodleCategoryByOrganisationId("hy-org-c"));
+    }
+
+    private void expectOrganisationExportRequest(long since, String response) {
+        studyRegistryMockServer.expect(requestTo(getSisuUrl() + "/kori/api/organisations/v2/export?limit=10000&since=" + since))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess(response, MediaType.APPLICATION_JSON));
+    }
+
+    private static String organisationJson(String id, String parentId) {
+        return organisationJson(id, parentId, "2020-01-01T00:00", "ACTIVE");
+    }
+
+    private static String organisationJson(String id, String parentId, String snapshotDateTime, String documentState) {
+        return "{\"id\": \"" + id + "\", \"parentId\": \"" + parentId + "\", \"snapshotDateTime\": \"" + snapshotDateTime + "\", "
+            + "\"documentState\": \"" + documentState + "\", \"status\": \"ACTIVE\"}";
+    }
 }
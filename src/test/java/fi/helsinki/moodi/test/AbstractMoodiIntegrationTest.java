@@ -28,6 +28,7 @@ import fi.helsinki.moodi.integration.moodle.MoodleRole;
 import fi.helsinki.moodi.integration.moodle.MoodleUserEnrollments;
 import fi.helsinki.moodi.service.importing.ImportCourseRequest;
 import fi.helsinki.moodi.service.synchronize.enrich.EnricherService;
+import fi.helsinki.moodi.service.synchronize.enrich.EnrichmentContext;
 import fi.helsinki.moodi.service.util.MapperService;
 import fi.helsinki.moodi.test.fixtures.Fixtures;
 import org.flywaydb.core.Flyway;
@@ -57,6 +58,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
@@ -326,7 +328,7 @@ public abstract class AbstractMoodiIntegrationTest {
     }
 
     protected final void expectGetUserRequestToMoodleUserNotFound(final String username) {
-        expectGetUserRequestToMoodleWithResponse(username, MOODLE_EMPTY_LIST_RESPONSE, false);
+        expectGetUserRequestToMoodleWithResponse(Collections.singletonList(username), MOODLE_EMPTY_LIST_RESPONSE, false);
     }
 
     protected final void expectGetUserRequestToMoodle(final String username, final long userMoodleId, boolean delayed) {
@@ -338,17 +340,49 @@ public abstract class AbstractMoodiIntegrationTest {
     }
 
     protected final void expectGetUserRequestToMoodle(final String username, final String userMoodleId, boolean delayed) {
-        final String response = String.format("[{\"id\":\"%s\", \"username\":\"%s\", \"email\":\"\", \"fullname\":\"\"}]", userMoodleId, username);
-        expectGetUserRequestToMoodleWithResponse(username, response, delayed);
+        expectGetUserRequestToMoodleWithResponse(Collections.singletonList(username), "[" + moodleUserJson(username, userMoodleId) + "]", delayed);
     }
 
-    private void expectGetUserRequestToMoodleWithResponse(String username, String response, boolean delayed) {
-        String payload = "wstoken=xxxx1234&wsfunction=core_user_get_users_by_field&moodlewsrestformat=json&field=username&values%5B0%5D="
-            + urlEncode(username);
+    /**
+     * Expects one bulk lookup of the usernames in the given order. Usernames without a Moodle id are not found.
+     */
+    protected final void expectGetUsersRequestToMoodle(final List<String> usernames, final Map<String, Long> moodleIdsByUsername) {
+        expectGetUsersRequestToMoodle(usernames, moodleIdsByUsername, false);
+    }
+
+    protected final void expectGetUsersRequestToMoodle(final List<String> usernames, final Map<String, Long> moodleIdsByUsername,
+                                                       boolean delayed) {
+        final String response = usernames.stream()
+            .filter(moodleIdsByUsername::containsKey)
+            .map(username -> moodleUserJson(username, String.valueOf(moodleIdsByUsername.get(username))))
+            .collect(Collectors.joining(", ", "[", "]"));
+        expectGetUserRequestToMoodleWithResponse(usernames, response, delayed);
+    }
+
+    private String moodleUserJson(String username, String userMoodleId) {
+        return String.format("{\"id\":\"%s\", \"username\":\"%s\", \"email\":\"\", \"fullname\":\"\"}", userMoodleId, username);
+    }
+
+    protected final void expectGetUsersRequestToMoodleWithServerError(final List<String> usernames) {
         moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
             .andExpect(method(HttpMethod.POST))
             .andExpect(header("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8"))
-            .andExpect(content().string(payload))
+            .andExpect(content().string(getUsersPayload(usernames)))
+            .andRespond(withServerError());
+    }
+
+    private String getUsersPayload(List<String> usernames) {
+        return "wstoken=xxxx1234&wsfunction=core_user_get_users_by_field&moodlewsrestformat=json&field=username"
+            + IntStream.range(0, usernames.size())
+                .mapToObj(i -> "&values%5B" + i + "%5D=" + urlEncode(usernames.get(i)))
+                .collect(Collectors.joining());
+    }
+
+    private void expectGetUserRequestToMoodleWithResponse(List<String> usernames, String response, boolean delayed) {
+        moodleReadOnlyMockServer.expect(requestTo(getMoodleRestUrl()))
+            .andExpect(method(HttpMethod.POST))
+            .andExpect(header("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8"))
+            .andExpect(content().string(getUsersPayload(usernames)))
             .andRespond(request -> {
                 if (delayed) {
                     try {
@@ -516,7 +550,7 @@ public abstract class AbstractMoodiIntegrationTest {
         return ret;
     }
 
-    protected void setUpMockSisuAndPrefetchCourses() {
+    protected EnrichmentContext setUpMockSisuAndPrefetchCourses() {
         // With batch size 2 Moodi makes 2 calls to fetch Sisu CURs
         mockSisuGraphQLServer.expectCourseUnitRealisationsRequest(SISU_COURSE_REALISATION_IDS.stream().limit(2).collect(Collectors.toList()),
             "/sisu/course-unit-realisations-1.json");
@@ -527,7 +561,7 @@ public abstract class AbstractMoodiIntegrationTest {
         mockSisuGraphQLServer.expectPersonsRequest(Arrays.asList("hy-hlo-2.1", "hy-hlo-3"), "/sisu/persons-many-2.json");
         mockSisuGraphQLServer.expectPersonsRequest(Arrays.asList("hy-hlo-4"), "/sisu/persons.json");
 
-        enricherService.prefetchSisuCourses(SISU_COURSE_REALISATION_IDS);
+        return enricherService.prefetchSisuCourses(SISU_COURSE_REALISATION_IDS);
     }
 
     protected void expectSisuOrganisationExportRequest() {
@@ -19,6 +19,7 @@ package fi.helsinki.moodi.test;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import fi.helsinki.moodi.integration.sisu.SisuCourseUnitRealisation;
+import fi.helsinki.moodi.integration.sisu.SisuGraphQLQueryRegistry;
 import fi.helsinki.moodi.integration.sisu.SisuPerson;
 import fi.helsinki.moodi.test.fixtures.Fixtures;
 import graphql.ExecutionInput;
@@ -30,17 +31,14 @@ import graphql.schema.idl.SchemaGenerator;
 import graphql.schema.idl.SchemaParser;
 import graphql.schema.idl.TypeDefinitionRegistry;
 import graphql.validation.ValidationError;
-import io.aexp.nodes.graphql.Argument;
-import io.aexp.nodes.graphql.Arguments;
-import io.aexp.nodes.graphql.GraphQLRequestEntity;
 import io.aexp.nodes.graphql.internal.DefaultObjectMapperFactory;
 import org.mockserver.client.MockServerClient;
+import org.mockserver.matchers.MatchType;
 import org.mockserver.model.Delay;
+import org.mockserver.model.HttpError;
 import org.mockserver.model.HttpRequest;
 
 import java.io.File;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +49,7 @@ import java.util.stream.Collectors;
 import static org.junit.Assert.fail;
 import static org.mockserver.model.HttpRequest.request;
 import static org.mockserver.model.HttpResponse.response;
+import static org.mockserver.model.JsonBody.json;
 
 public class MockSisuGraphQLServer {
     private final MockServerClient client;
@@ -58,6 +57,7 @@ public class MockSisuGraphQLServer {
     private static final String API_KEY = "test-apikey";
 
     private final GraphQLSchema graphQLSchema;
+    private final SisuGraphQLQueryRegistry queryRegistry = new SisuGraphQLQueryRegistry();
     private List<HttpRequest> expectedRequests = new ArrayList<>();
 
     public MockSisuGraphQLServer(MockServerClient client) {
@@ -74,9 +74,8 @@ public class MockSisuGraphQLServer {
     }
 
     public void expectCourseUnitRealisationsRequest(List<String> curIds, String responseFile, Map<String, ?> variables) {
-        Arguments arguments = new Arguments("course_unit_realisations", new Argument<>("ids", curIds));
         String responseString = Fixtures.asString(responseFile, variables);
-        expectGraphqlRequest(responseString, SisuCourseUnitRealisation.SisuCURWrapper.class, arguments);
+        expectGraphqlRequest(responseString, SisuCourseUnitRealisation.SisuCURWrapper.class, curIds);
     }
 
     public void expectCourseUnitRealisationsRequest(List<String> curIds, String responseFile) {
@@ -84,36 +83,48 @@ public class MockSisuGraphQLServer {
     }
 
     public void expectCourseUnitRealisationsRequestFromString(List<String> curIds, String responseString, boolean delayed) {
-        Arguments arguments = new Arguments("course_unit_realisations", new Argument<>("ids", curIds));
         if (delayed) {
-            expectGraphqlRequestWithDelay(responseString, SisuCourseUnitRealisation.SisuCURWrapper.class, arguments);
+            expectGraphqlRequestWithDelay(responseString, SisuCourseUnitRealisation.SisuCURWrapper.class, curIds);
         } else {
-            expectGraphqlRequest(responseString, SisuCourseUnitRealisation.SisuCURWrapper.class, arguments);
+            expectGraphqlRequest(responseString, SisuCourseUnitRealisation.SisuCURWrapper.class, curIds);
         }
     }
 
     public void expectPersonsRequest(List<String> personIds, String responseFile, Map<String, ?> variables) {
-        Arguments arguments = new Arguments("private_persons", new Argument<>("ids", personIds));
         String responseString = Fixtures.asString(responseFile, variables);
-        expectGraphqlRequest(responseString, SisuPerson.SisuPersonWrapper.class, arguments);
+        expectGraphqlRequest(responseString, SisuPerson.SisuPersonWrapper.class, personIds);
     }
 
     public void expectPersonsRequest(List<String> personIds, String responseFile) {
         expectPersonsRequest(personIds, responseFile, new HashMap<>());
     }
 
+    public void expectPersonsRequestWithDelay(List<String> personIds, String responseFile, long delayMillis) {
+        String responseString = Fixtures.asString(responseFile, new HashMap<>());
+        expectGraphqlRequestWithDelay(responseString, SisuPerson.SisuPersonWrapper.class, personIds, Delay.milliseconds(delayMillis));
+    }
+
+    public void expectPersonsRequestWithDroppedConnection(List<String> personIds) {
+        HttpRequest request = graphqlRequest(SisuPerson.SisuPersonWrapper.class, personIds);
+
+        client
+            .when(request)
+            .error(HttpError.error().withDropConnection(true));
+        expectedRequests.add(request);
+    }
+
     public void verify() {
         if (!expectedRequests.isEmpty()) {
             client.verify(expectedRequests.toArray(new HttpRequest[0]));
         }
     }
 
-    private <T> void expectGraphqlRequest(String responseString, Class<T> requestClass, Arguments... requestArguments) {
+    private <T> void expectGraphqlRequest(String responseString, Class<T> requestClass, List<String> ids) {
         HttpRequest request = request()
             .withMethod("POST")
             .withPath("/graphql")
             .withHeader(API_KEY_HEADER_NAME, API_KEY)
-            .withBody(requestBodyMatcher(requestClass, requestArguments));
+            .withBody(json(requestBodyMatcher(requestClass, ids), MatchType.STRICT));
 
         client
             .when(request)
@@ -124,12 +135,12 @@ public class MockSisuGraphQLServer {
         expectedRequests.add(request);
     }
 
-    private <T> void expectGraphqlRequestWithDelay(String responseString, Class<T> requestClass, Arguments... requestArguments) {
-        HttpRequest request = request()
-            .withMethod("POST")
-            .withPath("/graphql")
-            .withHeader(API_KEY_HEADER_NAME, API_KEY)
-            .withBody(requestBodyMatcher(requestClass, requestArguments));
+    private <T> void expectGraphqlRequestWithDelay(String responseString, Class<T> requestClass, List<String> ids) {
+        expectGraphqlRequestWithDelay(responseString, requestClass, ids, Delay.milliseconds(ThreadLocalRandom.current().nextInt(1001)));
+    }
+
+    private <T> void expectGraphqlRequestWithDelay(String responseString, Class<T> requestClass, List<String> ids, Delay delay) {
+        HttpRequest request = graphqlRequest(requestClass, ids);
 
         client
             .when(request)
@@ -137,25 +148,25 @@ public class MockSisuGraphQLServer {
                 response()
                     .withStatusCode(200)
                     .withBody(responseString)
-                    .withDelay(Delay.milliseconds(ThreadLocalRandom.current().nextInt(1001))));
+                    .withDelay(delay));
 
         expectedRequests.add(request);
     }
 
-    private <T> String requestBodyMatcher(Class<T> requestClass, Arguments... arguments) {
-        GraphQLRequestEntity requestEntity;
+    private <T> HttpRequest graphqlRequest(Class<T> requestClass, List<String> ids) {
+        return request()
+            .withMethod("POST")
+            .withPath("/graphql")
+            .withHeader(API_KEY_HEADER_NAME, API_KEY)
+            .withBody(json(requestBodyMatcher(requestClass, ids), MatchType.STRICT));
+    }
+
+    private <T> String requestBodyMatcher(Class<T> requestClass, List<String> ids) {
         try {
-            requestEntity = GraphQLRequestEntity.Builder()
-                .url("http://not-used")
-                .request(requestClass)
-                .arguments(arguments)
-                .scalars(LocalDate.class, LocalDateTime.class)
-                .build();
-
-            String query = requestEntity.getRequest();
+            String query = queryRegistry.getDocument(requestClass);
             assertQueryIsValid(query);
 
-            SisuServerRequest sisuServerRequest = new SisuServerRequest(query, requestEntity.getVariables());
+            SisuServerRequest sisuServerRequest = new SisuServerRequest(query, queryRegistry.idsVariables(ids));
 
             DefaultObjectMapperFactory defaultObjectMapperFactory = new DefaultObjectMapperFactory();
             ObjectMapper mapper = defaultObjectMapperFactory.newSerializerMapper();
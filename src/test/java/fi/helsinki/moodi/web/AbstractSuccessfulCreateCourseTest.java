@@ -17,12 +17,15 @@
 
 package fi.helsinki.moodi.web;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
 import fi.helsinki.moodi.test.AbstractMoodiIntegrationTest;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public abstract class AbstractSuccessfulCreateCourseTest extends AbstractMoodiIntegrationTest {
@@ -74,17 +77,19 @@ public abstract class AbstractSuccessfulCreateCourseTest extends AbstractMoodiIn
                                         boolean allUsersFound, String categoryId, String creatorSisuId) {
         expectCreateCourseRequestToMoodle(curId, description, MOODLE_COURSE_ID_NOT_IN_DB, categoryId);
 
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA);
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA);
+        List<String> usernames = Lists.newArrayList(MOODLE_USERNAME_NIINA, MOODLE_USERNAME_JUKKA, MOODLE_USERNAME_MAKE, MOODLE_USERNAME_HRAOPE);
+        Map<String, Long> moodleIdsByUsername = Maps.newHashMap(ImmutableMap.of(
+            MOODLE_USERNAME_NIINA, MOODLE_USER_ID_NIINA,
+            MOODLE_USERNAME_JUKKA, MOODLE_USER_ID_JUKKA,
+            MOODLE_USERNAME_HRAOPE, MOODLE_USER_HRAOPE));
         if (allUsersFound) {
-            expectGetUserRequestToMoodle(MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE);
-        } else {
-            expectGetUserRequestToMoodleUserNotFound(MOODLE_USERNAME_MAKE);
+            moodleIdsByUsername.put(MOODLE_USERNAME_MAKE, MOODLE_USER_ID_MAKE);
         }
-        expectGetUserRequestToMoodle(MOODLE_USERNAME_HRAOPE, MOODLE_USER_HRAOPE);
         if (creatorSisuId != null) {
-            expectGetUserRequestToMoodle(MOODLE_USERNAME_CREATOR, MOODLE_USER_CREATOR);
+            usernames.add(MOODLE_USERNAME_CREATOR);
+            moodleIdsByUsername.put(MOODLE_USERNAME_CREATOR, MOODLE_USER_CREATOR);
         }
+        expectGetUsersRequestToMoodle(usernames, moodleIdsByUsername);
 
         List<MoodleEnrollment> expectedEnrollments = Lists.newArrayList(
             new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_NOT_IN_DB),
@@ -0,0 +1,86 @@
+/*
+ * This file is part of Moodi application.
+ *
+ * Moodi application is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Moodi application is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Moodi application.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fi.helsinki.moodi.web;
+
+import fi.helsinki.moodi.integration.moodle.MoodleEnrollment;
+import fi.helsinki.moodi.scheduled.AbstractSynchronizationJobTest;
+import fi.helsinki.moodi.service.synchronize.SynchronizationType;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+
+import java.util.Collections;
+
+import static fi.helsinki.moodi.test.util.DateUtil.getFutureDateString;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class SynchronizeCourseTest extends AbstractSynchronizationJobTest {
+
+    @Test
+    public void thatCourseIsSynchronizedAndUserResultsAreReturned() throws Exception {
+        setUpMockServerResponses(getFutureDateString(), true);
+
+        prepareMoodleGetEnrolledUsersForCoursesMock(MOODLE_COURSE_ID_IN_DB, Collections.emptyList());
+
+        expectFindUsersRequestsToMoodle();
+
+        expectEnrollmentRequestToMoodle(
+            new MoodleEnrollment(getStudentRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_ID_NIINA, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getTeacherRoleId(), MOODLE_USER_HRAOPE, MOODLE_COURSE_ID_IN_DB),
+            new MoodleEnrollment(getMoodiRoleId(), MOODLE_USER_HRAOPE, MOODLE_COURSE_ID_IN_DB));
+
+        mockMvc.perform(
+            post("/api/v1/courses/" + SISU_REALISATION_IN_DB_ID + "/synchronize")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("client-id", "testclient")
+                .header("client-token", "xxx123"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.realisationId").value(SISU_REALISATION_IN_DB_ID))
+            .andExpect(jsonPath("$.moodleId").value(MOODLE_COURSE_ID_IN_DB))
+            .andExpect(jsonPath("$.processingStatus").value("SUCCESS"))
+            .andExpect(jsonPath("$.users", hasSize(2)))
+            .andExpect(jsonPath("$.users[*].status", everyItem(is("SUCCESS"))));
+    }
+
+    @Test
+    public void thatCourseIsNotSynchronizedWhileSynchronizationRunIsInProgress() throws Exception {
+        synchronizationJobRunService.begin(SynchronizationType.FULL);
+
+        mockMvc.perform(
+            post("/api/v1/courses/" + SISU_REALISATION_IN_DB_ID + "/synchronize")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("client-id", "testclient")
+                .header("client-token", "xxx123"))
+            .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void thatSynchronizingNonexistingCourseReturnsNotFound() throws Exception {
+        mockMvc.perform(
+            post("/api/v1/courses/" + SISU_REALISATION_NOT_IN_DB_ID + "/synchronize")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("client-id", "testclient")
+                .header("client-token", "xxx123"))
+            .andExpect(status().isNotFound());
+    }
+}